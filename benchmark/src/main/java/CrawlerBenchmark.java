@@ -0,0 +1,296 @@
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Offline benchmarks of the crawler: end-to-end crawl of the local StubApiServer, json parsing,
+ * url building, csv and article storage writes, page claims. Every benchmark runs warmup iterations first and reports
+ * the mean throughput of the measured ones.
+ * Runs in the default package next to the crawler classes, which JMH does not support,
+ * so a minimal harness is used instead.
+ */
+public class CrawlerBenchmark {
+    private static final Logger logger = LogManager.getLogger(CrawlerBenchmark.class);
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final int warmupIterations = Integer.getInteger("bench.warmup", 2);
+    private static final int iterations = Integer.getInteger("bench.iterations", 5);
+    private static final String only = System.getProperty("bench.only", "");
+
+    private static final List<String> results = new ArrayList<>();
+
+
+    private interface Operation {
+        // Returns number of operations done
+        long run() throws Exception;
+    }
+
+    private static void measure(String name, String unit, int warmups, int measured, Operation operation)
+            throws Exception {
+        if (!only.isEmpty() && !only.contains(name)) {
+            return;
+        }
+        for (int i = 0; i < warmups; i++) {
+            operation.run();
+        }
+        long operations = 0;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < measured; i++) {
+            operations += operation.run();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        results.add(String.format("%-20s %14.1f %s/s", name, operations / seconds, unit));
+    }
+
+
+    private static Path writeConfig(Path directory, String apiUrl) throws IOException {
+        Path configPath = Paths.get(directory.toString(), "config.properties");
+        Files.write(configPath, List.of(
+                "categories = " + System.getProperty("bench.categories", "Bench0,Bench1"),
+                "api_url = " + apiUrl,
+                "parallel_task_number = " + Integer.getInteger("bench.parallel", 8),
+                "page_fetcher_number = " + Integer.getInteger("bench.parallel", 8),
+                "use_virtual_threads = " + System.getProperty("bench.virtual_threads", "true"),
+                "requests_per_second = 0",
+                "page_batch_size = " + Integer.getInteger("bench.page_batch_size", 1),
+                "use_generator_listing = " + System.getProperty("bench.generator_listing", "false"),
+                "storage = " + System.getProperty("bench.storage", "files"),
+                "path_to_crawled_data = " + directory.toString(),
+                "csv_filename = pages_info.csv",
+                "max_pages_per_level = 1000000"), StandardCharsets.UTF_8);
+        return configPath;
+    }
+
+
+    // Crawl of the whole stub tree, pages downloaded per second
+    private static void benchmarkCrawl(Path directory) throws Exception {
+        try (StubApiServer stub = new StubApiServer()) {
+            stub.port = 0;
+            stub.start();
+            System.setProperty("crawler.config", writeConfig(directory, stub.getApiUrl()).toString());
+            Main.readProperties();
+
+            measure("crawl", "pages", 1, Integer.getInteger("bench.crawl_iterations", 3), () -> {
+                Crawler.run();
+                return Crawler.getMetrics().getPagesDownloaded();
+            });
+        }
+    }
+
+
+    private static byte[] makeCategoryMembers(int count) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"pageid\":").append(i)
+                    .append(",\"ns\":0,\"title\":\"Статья ").append(i).append("\",\"type\":\"page\"}");
+        }
+        return json.append("]").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] makePages(int count, int extractLength) {
+        String extract = "Текст статьи. ".repeat(extractLength / 14 + 1).substring(0, extractLength);
+        StringBuilder json = new StringBuilder("{\"query\":{\"pages\":{");
+        for (int i = 0; i < count; i++) {
+            json.append(i == 0 ? "" : ",").append('"').append(i).append("\":{\"pageid\":").append(i)
+                    .append(",\"title\":\"Статья ").append(i).append("\",\"lastrevid\":").append(1000 + i)
+                    .append(",\"extract\":\"").append(extract).append("\"}");
+        }
+        return json.append("}}}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    // Article storage which drops the texts, so parsing is measured without disk writes
+    private static final ArticleStorage discardingStorage = new ArticleStorage() {
+        @Override
+        public PendingArticle create(Path directory, String fileId) {
+            return new PendingArticle() {
+                @Override
+                public Writer getWriter() {
+                    return Writer.nullWriter();
+                }
+
+                @Override
+                public String commit(String title) {
+                    return fileId;
+                }
+
+                @Override
+                public void discard() {
+                }
+            };
+        }
+
+        @Override
+        public String reuse(String previousLocation, Path directory, String fileId, String title) {
+            return null;
+        }
+
+        @Override
+        public boolean delete(String location) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+
+    // Category member listings and page objects of page responses are parsed by the crawler's own methods
+    private static void benchmarkParsing(Path directory) throws Exception {
+        byte[] members = makeCategoryMembers(500);
+        measure("parse_members", "members", warmupIterations, iterations, () -> {
+            long count = 0;
+            for (int i = 0; i < 200; i++) {
+                Map<String, String> pageNameIdMap = new HashMap<>();
+                try (JsonParser parser = jsonFactory.createParser(members)) {
+                    parser.nextToken();
+                    ProcessCategory.readCategoryMembers(parser, pageNameIdMap, new HashMap<>());
+                }
+                count += pageNameIdMap.size();
+            }
+            return count;
+        });
+
+        byte[] pages = makePages(20, Integer.getInteger("bench.extract_length", 2000));
+        measure("parse_pages", "KB", warmupIterations, iterations, () -> {
+            long length = 0;
+            for (int i = 0; i < 200; i++) {
+                try (JsonParser parser = jsonFactory.createParser(pages)) {
+                    // Into {"query":{"pages":{"id":{...}, ...}}}
+                    parser.nextToken();
+                    parser.nextToken();
+                    parser.nextToken();
+                    parser.nextToken();
+                    parser.nextToken();
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        parser.nextToken();
+                        length += ProcessCategory.readPage(parser, discardingStorage, directory, "00_000")
+                                .getPageLength();
+                    }
+                }
+            }
+            if (length == 0) {
+                throw new IllegalStateException("No extracts parsed");
+            }
+            return 200L * pages.length / 1024;
+        });
+    }
+
+
+    private static void benchmarkUrls(Path directory) throws Exception {
+        Wiki wiki = new Wiki(0, "", "http://127.0.0.1/w/api.php", "http://127.0.0.1/wiki/", "Категория", 0, 1, 1);
+        ProcessCategory processCategory = new ProcessCategory(new TaskParameters(wiki, "Категория:Бенчмарк",
+                "Категория:Бенчмарк", 0, directory, "00_"));
+        List<String> pageIds = new ArrayList<>();
+        for (int i = 0; i < Main.getPageBatchSize(); i++) {
+            pageIds.add(String.valueOf(1000000 + i));
+        }
+
+        measure("category_url", "urls", warmupIterations, iterations, () -> {
+            for (int i = 0; i < 100000; i++) {
+                processCategory.makeCategoryUrl("Категория:Бенчмарк", i % 2 == 0 ? "" : "page|1234|5678");
+            }
+            return 100000;
+        });
+        measure("pages_url", "urls", warmupIterations, iterations, () -> {
+            for (int i = 0; i < 100000; i++) {
+                processCategory.makePagesUrl(pageIds, i % 2 == 0 ? "" : "10");
+            }
+            return 100000;
+        });
+    }
+
+
+    private static void benchmarkWrites(Path directory) throws Exception {
+        measure("csv_write", "rows", warmupIterations, iterations, () -> {
+            try (CsvSink csvSink = new CsvSink(Paths.get(directory.toString(), "bench.csv"))) {
+                for (int i = 0; i < 100000; i++) {
+                    csvSink.addRow(String.format("\"%08d\",\"Статья %d\",\"https://ru.wikipedia.org/wiki/%d\"," +
+                            "00,1,2000,,\"00_A/%08d.txt\"", 100000 - i, i, i, i));
+                }
+            }
+            return 100000;
+        });
+
+        String text = "Текст статьи. ".repeat(Integer.getInteger("bench.extract_length", 2000) / 14 + 1);
+        Path filesDirectory = Files.createDirectories(Paths.get(directory.toString(), "files"));
+        measure("files_storage", "articles", warmupIterations, iterations, () -> {
+            ArticleStorage storage = new FileArticleStorage(directory);
+            return writeArticles(storage, filesDirectory, text);
+        });
+        measure("pack_storage", "articles", warmupIterations, iterations, () -> {
+            try (ArticleStorage storage = new PackArticleStorage(directory, Main.getPackSegmentBytes(), false)) {
+                return writeArticles(storage, directory, text);
+            }
+        });
+    }
+
+    private static long writeArticles(ArticleStorage storage, Path directory, String text) throws IOException {
+        for (int i = 0; i < 5000; i++) {
+            ArticleStorage.PendingArticle article = storage.create(directory, String.format("%06d", i));
+            try (Writer writer = article.getWriter()) {
+                writer.write(text);
+            }
+            article.commit("Статья " + i);
+        }
+        return 5000;
+    }
+
+
+    // Every page claimed once and looked up again, as listings of overlapping categories do
+    private static void benchmarkBookkeeping() throws Exception {
+        Wiki wiki = new Wiki(0, "", "http://127.0.0.1/w/api.php", "http://127.0.0.1/wiki/", "Категория", 0, 1, 1);
+        int pages = Integer.getInteger("bench.claimed_pages", 1000000);
+        String[] pageIds = new String[pages];
+        String[] fileIds = new String[pages];
+        for (int i = 0; i < pages; i++) {
+            pageIds[i] = String.valueOf(i);
+            fileIds[i] = "00_" + String.format("%03d", i / 1000) + "_" + String.format("%03d", i % 1000);
+        }
+        for (boolean offHeap : new boolean[]{false, true}) {
+            measure(offHeap ? "page_claims_off_heap" : "page_claims", "pages", warmupIterations, iterations, () -> {
+                PageClaims claims = new PageClaims(offHeap);
+                for (int i = 0; i < pages; i++) {
+                    claims.claim(wiki.pageKey(pageIds[i]), fileIds[i]);
+                }
+                for (int i = 0; i < pages; i++) {
+                    if (claims.get(wiki.pageKey(pageIds[i])) == null) {
+                        throw new IllegalStateException("Page " + i + " is not claimed");
+                    }
+                }
+                return pages;
+            });
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("crawler-benchmark");
+        try {
+            benchmarkCrawl(directory);
+            benchmarkParsing(directory);
+            benchmarkUrls(directory);
+            benchmarkWrites(directory);
+            benchmarkBookkeeping();
+        } finally {
+            Crawler.deleteDataDirectory(directory);
+        }
+
+        logger.info("Benchmark results:\n" + String.join("\n", results));
+    }
+}
@@ -0,0 +1,281 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Local MediaWiki API serving a synthetic category tree, so the crawler can be run and measured offline.
+ * Every category down to the given depth has the same number of subcategories, named "parent/k",
+ * and the same number of pages taken from a shared pool, so categories share pages like real ones do.
+ * Supports list=categorymembers with cmcontinue, prop=extracts|info with excontinue, prop=info,
+ * prop=categoryinfo and generator=categorymembers with prop=extracts|info.
+ * Settings are read from system properties stub.* and can be changed by benchmarks before start.
+ */
+public class StubApiServer implements Closeable {
+    private static final Logger logger = LogManager.getLogger(StubApiServer.class);
+
+    int port = Integer.getInteger("stub.port", 8765);
+    int depth = Integer.getInteger("stub.depth", 3);
+    int subcategoryCount = Integer.getInteger("stub.subcategories", 3);
+    int pagesPerCategory = Integer.getInteger("stub.pages_per_category", 20);
+    int pageCount = Integer.getInteger("stub.page_count", 1000);
+    int extractLength = Integer.getInteger("stub.extract_length", 2000);
+    int latencyMs = Integer.getInteger("stub.latency_ms", 0);
+    int membersPerResponse = Integer.getInteger("stub.members_per_response", 500);
+    // Whole-article extracts per response. Like the real TextExtracts, which returns more than one only with exintro
+    // (up to 20), the rest following by excontinue
+    int extractsPerResponse = Integer.getInteger("stub.extracts_per_response", 1);
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        // Platform threads, since crawler virtual threads pinned in blocking reads in the same JVM
+        // could leave no carrier thread to the stub
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/w/api.php", this::handle);
+        server.start();
+        port = server.getAddress().getPort();
+        logger.info("Stub API listening on " + getApiUrl());
+    }
+
+    String getApiUrl() {
+        return "http://127.0.0.1:" + port + "/w/api.php";
+    }
+
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (latencyMs > 0) {
+                Thread.sleep(latencyMs);
+            }
+            Map<String, String> params = new HashMap<>();
+            for (NameValuePair pair : URLEncodedUtils.parse(exchange.getRequestURI(), StandardCharsets.UTF_8)) {
+                params.put(pair.getName(), pair.getValue());
+            }
+
+            String body;
+            if ("categorymembers".equals(params.get("generator"))) {
+                body = generatedPages(params.get("gcmtitle"), Integer.parseInt(params.getOrDefault("gcmlimit", "10")),
+                        params.getOrDefault("gcmcontinue", ""), params.getOrDefault("prop", "").contains("extracts"),
+                        params.getOrDefault("excontinue", ""), extractLimit(params));
+            } else if ("categorymembers".equals(params.get("list"))) {
+                body = categoryMembers(params.get("cmtitle"), params.getOrDefault("cmcontinue", ""));
+            } else if ("categoryinfo".equals(params.get("prop")) && params.containsKey("titles")) {
+                body = categoryInfo(params.get("titles").split("\\|"));
+            } else if (params.containsKey("pageids")) {
+                body = pages(params.get("pageids").split("\\|"), params.getOrDefault("prop", "").contains("extracts"),
+                        params.getOrDefault("excontinue", ""), extractLimit(params));
+            } else {
+                // Like the real API, errors come with status 200 and the error code in a header
+                body = "{\"error\":{\"code\":\"badrequest\",\"info\":\"Unsupported query\"}}";
+                exchange.getResponseHeaders().set("MediaWiki-API-Error", "badrequest");
+            }
+
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(bytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static int categoryDepth(String category) {
+        return (int) category.chars().filter(c -> c == '/').count();
+    }
+
+    // Pages of a category are a deterministic window of the shared pool
+    private int pageId(String category, int k) {
+        return Math.floorMod(category.hashCode() * 31 + k * 7, pageCount) + 1;
+    }
+
+    static String pageTitle(int pageId) {
+        return "Статья " + pageId;
+    }
+
+
+    private List<String> subcategories(String category) {
+        List<String> subcategories = new ArrayList<>();
+        if (categoryDepth(category) < depth) {
+            for (int k = 0; k < subcategoryCount; k++) {
+                subcategories.add(category + "/" + k);
+            }
+        }
+        return subcategories;
+    }
+
+    private int subcategoryPageId(String subcategory) {
+        return pageCount + Math.floorMod(subcategory.hashCode(), 1000000) + 1;
+    }
+
+
+    private String categoryMembers(String category, String cmcontinue) {
+        List<String> members = new ArrayList<>();
+        for (int k = 0; k < pagesPerCategory; k++) {
+            int pageId = pageId(category, k);
+            members.add("{\"pageid\":" + pageId + ",\"ns\":0,\"title\":" + quote(pageTitle(pageId)) +
+                    ",\"type\":\"page\"}");
+        }
+        for (String subcategory : subcategories(category)) {
+            members.add("{\"pageid\":" + subcategoryPageId(subcategory) + ",\"ns\":14,\"title\":" +
+                    quote(subcategory) + ",\"type\":\"subcat\"}");
+        }
+
+        int start = cmcontinue.isEmpty() ? 0 : Integer.parseInt(cmcontinue);
+        int end = Math.min(start + membersPerResponse, members.size());
+        StringBuilder body = new StringBuilder("{\"batchcomplete\":\"\",");
+        if (end < members.size()) {
+            body.append("\"continue\":{\"cmcontinue\":\"").append(end).append("\",\"continue\":\"-||\"},");
+        }
+        body.append("\"query\":{\"categorymembers\":[")
+                .append(String.join(",", members.subList(start, end)))
+                .append("]}}");
+        return body.toString();
+    }
+
+
+    private String categoryInfo(String[] categories) {
+        List<String> pages = new ArrayList<>();
+        for (int n = 0; n < categories.length; n++) {
+            int subcategories = categoryDepth(categories[n]) < depth ? subcategoryCount : 0;
+            pages.add(quote(String.valueOf(-1 - n)) + ":{\"ns\":14,\"title\":" + quote(categories[n]) +
+                    ",\"missing\":\"\",\"categoryinfo\":{\"size\":" + (pagesPerCategory + subcategories) +
+                    ",\"pages\":" + pagesPerCategory + ",\"files\":0,\"subcats\":" + subcategories + "}}");
+        }
+        return "{\"batchcomplete\":\"\",\"query\":{\"pages\":{" + String.join(",", pages) + "}}}";
+    }
+
+
+    private String extract(int pageId) {
+        String sentence = "Текст статьи " + pageId + ". ";
+        StringBuilder text = new StringBuilder(extractLength + sentence.length());
+        while (text.length() < extractLength) {
+            text.append(sentence);
+        }
+        text.setLength(extractLength);
+        return text.toString();
+    }
+
+    private int extractLimit(Map<String, String> params) {
+        return params.containsKey("exintro") ? 20 : extractsPerResponse;
+    }
+
+    // Like the real API, extracts of a multi-page query come in parts continued by excontinue
+    private String pages(String[] pageIds, boolean withExtracts, String excontinue, int extractLimit) {
+        int start = excontinue.isEmpty() ? 0 : Integer.parseInt(excontinue);
+        int end = Math.min(start + extractLimit, pageIds.length);
+
+        List<String> pages = new ArrayList<>();
+        for (int n = 0; n < pageIds.length; n++) {
+            int pageId = Integer.parseInt(pageIds[n]);
+            StringBuilder page = new StringBuilder();
+            page.append(quote(pageIds[n])).append(":{\"pageid\":").append(pageId)
+                    .append(",\"ns\":0,\"title\":").append(quote(pageTitle(pageId)))
+                    .append(",\"lastrevid\":").append(1000 + pageId);
+            if (withExtracts && n >= start && n < end) {
+                page.append(",\"extract\":").append(quote(extract(pageId)));
+            }
+            pages.add(page.append("}").toString());
+        }
+
+        StringBuilder body = new StringBuilder("{");
+        if (withExtracts && end < pageIds.length) {
+            body.append("\"continue\":{\"excontinue\":").append(end).append(",\"continue\":\"||\"},");
+        } else {
+            body.append("\"batchcomplete\":\"\",");
+        }
+        body.append("\"query\":{\"pages\":{").append(String.join(",", pages)).append("}}}");
+        return body.toString();
+    }
+
+
+    // Members of a category with extracts of its pages. Like the real API, the generator stays on the same
+    // members, continued by excontinue, until all their extracts are returned
+    private String generatedPages(String category, int limit, String gcmcontinue, boolean withExtracts,
+                                  String excontinue, int extractLimit) {
+        List<String> subcategories = subcategories(category);
+        int memberCount = pagesPerCategory + subcategories.size();
+        int start = gcmcontinue.isEmpty() ? 0 : Integer.parseInt(gcmcontinue);
+        int end = Math.min(start + limit, memberCount);
+        int articleCount = Math.max(0, Math.min(end, pagesPerCategory) - start);
+        int extractStart = excontinue.isEmpty() ? 0 : Integer.parseInt(excontinue);
+        int extractEnd = withExtracts ? Math.min(extractStart + extractLimit, articleCount) : articleCount;
+
+        List<String> pages = new ArrayList<>();
+        for (int n = start; n < end; n++) {
+            StringBuilder page = new StringBuilder();
+            if (n < pagesPerCategory) {
+                int pageId = pageId(category, n);
+                page.append(quote(String.valueOf(pageId))).append(":{\"pageid\":").append(pageId)
+                        .append(",\"ns\":0,\"title\":").append(quote(pageTitle(pageId)))
+                        .append(",\"lastrevid\":").append(1000 + pageId);
+                if (withExtracts && n - start >= extractStart && n - start < extractEnd) {
+                    page.append(",\"extract\":").append(quote(extract(pageId)));
+                }
+            } else {
+                String subcategory = subcategories.get(n - pagesPerCategory);
+                int pageId = subcategoryPageId(subcategory);
+                page.append(quote(String.valueOf(pageId))).append(":{\"pageid\":").append(pageId)
+                        .append(",\"ns\":14,\"title\":").append(quote(subcategory))
+                        .append(",\"lastrevid\":").append(1000 + pageId);
+            }
+            pages.add(page.append("}").toString());
+        }
+
+        StringBuilder body = new StringBuilder("{");
+        if (extractEnd < articleCount) {
+            body.append("\"continue\":{\"excontinue\":").append(extractEnd);
+            if (start > 0) {
+                body.append(",\"gcmcontinue\":\"").append(start).append("\"");
+            }
+            body.append(",\"continue\":\"gcmcontinue||\"},");
+        } else if (end < memberCount) {
+            body.append("\"continue\":{\"gcmcontinue\":\"").append(end).append("\",\"continue\":\"gcmcontinue||\"},");
+        } else {
+            body.append("\"batchcomplete\":\"\",");
+        }
+        body.append("\"query\":{\"pages\":{").append(String.join(",", pages)).append("}}}");
+        return body.toString();
+    }
+
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+
+    // Runs the stub until the process is killed
+    public static void main(String[] args) throws IOException {
+        new StubApiServer().start();
+    }
+}
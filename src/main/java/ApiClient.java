@@ -0,0 +1,315 @@
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Process-wide HTTP client for the MediaWiki API.
+ * Connections are pooled and kept alive between requests of all tasks.
+ * Failed requests are repeated by the retry policy, requests the API throttles also pause the rate limiter
+ * for Retry-After, and the circuit breaker pauses all requests while the API keeps failing.
+ * A request is aborted when it is not finished within the request timeout, body reading included.
+ */
+class ApiClient implements Closeable {
+    private static final Logger logger = LogManager.getLogger(ApiClient.class);
+
+    private static final int statusTooManyRequests = 429;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final RateLimiter rateLimiter;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final CrawlMetrics metrics;
+    private final FailedRequestLog failedRequestLog;
+    private final ScheduledExecutorService timeoutScheduler;
+    // Virtual threads waiting for a connection inside the pool's synchronized lease pin their carrier threads,
+    // and with every carrier pinned no thread can return a connection. Requests wait for a permit here
+    // instead, one permit per pooled connection, released when the response is closed
+    private final Semaphore connectionPermits;
+
+
+    ApiClient(int maxConnections, RateLimiter rateLimiter, RetryPolicy retryPolicy, CircuitBreaker circuitBreaker,
+              CrawlMetrics metrics, FailedRequestLog failedRequestLog) {
+        this.rateLimiter = rateLimiter;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.metrics = metrics;
+        this.failedRequestLog = failedRequestLog;
+        this.timeoutScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "request-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.connectionPermits = new Semaphore(maxConnections, true);
+        long keepAliveMs = TimeUnit.SECONDS.toMillis(Main.getHttpKeepAliveSeconds());
+
+        connectionManager = new PoolingHttpClientConnectionManager(keepAliveMs, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoTimeout(Main.getHttpSocketTimeoutMs())
+                .setSoKeepAlive(true)
+                .setTcpNoDelay(true)
+                .setRcvBufSize(Main.getHttpSocketBufferSize())
+                .setSndBufSize(Main.getHttpSocketBufferSize())
+                .build());
+        if (Main.getHttpSocketBufferSize() > 0) {
+            connectionManager.setDefaultConnectionConfig(ConnectionConfig.custom()
+                    .setBufferSize(Main.getHttpSocketBufferSize())
+                    .build());
+        }
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setCookieSpec(CookieSpecs.STANDARD)
+                        .setConnectTimeout(Main.getHttpConnectTimeoutMs())
+                        .setConnectionRequestTimeout(Main.getHttpConnectTimeoutMs())
+                        .setSocketTimeout(Main.getHttpSocketTimeoutMs())
+                        .build())
+                .setKeepAliveStrategy((response, context) -> {
+                    long serverKeepAliveMs = DefaultConnectionKeepAliveStrategy.INSTANCE
+                            .getKeepAliveDuration(response, context);
+                    return serverKeepAliveMs > 0 ? Math.min(serverKeepAliveMs, keepAliveMs) : keepAliveMs;
+                })
+                .evictIdleConnections(keepAliveMs, TimeUnit.MILLISECONDS)
+                .evictExpiredConnections()
+                .build();
+
+        logger.info("Created http connection pool with " + maxConnections + " connections");
+    }
+
+
+    // API asks to slow down with 429/503 or with maxlag error, which comes with status 200
+    static boolean isThrottled(HttpResponse response) {
+        int statusCode = response.getStatusLine().getStatusCode();
+        Header apiError = response.getFirstHeader("MediaWiki-API-Error");
+        return statusCode == statusTooManyRequests || statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE
+                || (apiError != null && apiError.getValue().equals("maxlag"));
+    }
+
+    // Other client errors would fail again, server errors may pass on the next attempt
+    static boolean isRetryable(HttpResponse response) {
+        return isThrottled(response) || response.getStatusLine().getStatusCode() >= 500;
+    }
+
+    // Client error status, or API error other than maxlag, which comes with status 200. Null for a good response
+    static String getRejection(HttpResponse response) {
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+            return response.getStatusLine().toString();
+        }
+        Header apiError = response.getFirstHeader("MediaWiki-API-Error");
+        return apiError != null ? "API error: " + apiError.getValue() : null;
+    }
+
+    // Retry-After in seconds or as http date, -1 if absent
+    static long getRetryAfterSeconds(HttpResponse response, long nowMs) {
+        Header retryAfter = response.getFirstHeader("Retry-After");
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return Math.max(1, Long.parseLong(retryAfter.getValue().trim()));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(retryAfter.getValue());
+            if (date != null) {
+                return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(date.getTime() - nowMs));
+            }
+            logger.debug("Cannot parse Retry-After: " + retryAfter.getValue());
+            return -1;
+        }
+    }
+
+
+    // Counts bytes of response body as it is read by the parser
+    private static class CountingEntity extends HttpEntityWrapper {
+        private final CrawlMetrics metrics;
+
+        CountingEntity(HttpEntity entity, CrawlMetrics metrics) {
+            super(entity);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        metrics.addBytes(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int count = super.read(buffer, offset, length);
+                    if (count > 0) {
+                        metrics.addBytes(count);
+                    }
+                    return count;
+                }
+            };
+        }
+    }
+
+
+    // Response of execute. Closing it returns the connection to the pool, then gives the connection permit back
+    // and cancels the request timeout, only once however many times the response is closed
+    class Response implements Closeable {
+        private final CloseableHttpResponse response;
+        private final ScheduledFuture<?> timeout;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Response(CloseableHttpResponse response, ScheduledFuture<?> timeout) {
+            this.response = response;
+            this.timeout = timeout;
+        }
+
+        StatusLine getStatusLine() {
+            return response.getStatusLine();
+        }
+
+        Header getFirstHeader(String name) {
+            return response.getFirstHeader(name);
+        }
+
+        // Body stream, its bytes are counted by metrics as they are read
+        InputStream getContent() throws IOException {
+            return response.getEntity().getContent();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                response.close();
+            } finally {
+                if (released.compareAndSet(false, true)) {
+                    release(timeout);
+                }
+            }
+        }
+    }
+
+    private void release(ScheduledFuture<?> timeout) {
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        connectionPermits.release();
+    }
+
+
+    // Returns response with status 200 or with an error which is not worth repeating: a client error status
+    // or an API error. Such responses are recorded as failed requests.
+    // Response must be closed by caller to return connection to the pool.
+    // Throws IOException when all attempts failed. Latency is measured until response headers,
+    // body is streamed by the caller
+    Response execute(HttpGet get, CrawlMetrics.RequestType requestType)
+            throws IOException, InterruptedException {
+        int attempt = 1;
+        while (true) {
+            rateLimiter.acquire();
+            connectionPermits.acquire();
+            try {
+                circuitBreaker.acquire();
+            } catch (InterruptedException e) {
+                connectionPermits.release();
+                throw e;
+            }
+
+            get.reset();
+            ScheduledFuture<?> timeout = Main.getHttpRequestTimeoutMs() > 0
+                    ? timeoutScheduler.schedule(get::abort, Main.getHttpRequestTimeoutMs(), TimeUnit.MILLISECONDS)
+                    : null;
+            String failure;
+            long retryAfterSeconds = -1;
+            boolean throttled = false;
+            long startNanos = System.nanoTime();
+            try {
+                CloseableHttpResponse response = httpClient.execute(get);
+                metrics.recordRequest(requestType, System.nanoTime() - startNanos);
+
+                if (!isRetryable(response)) {
+                    circuitBreaker.onSuccess();
+                    rateLimiter.onSuccess();
+                    String rejection = getRejection(response);
+                    if (rejection != null) {
+                        metrics.requestFailed();
+                        failedRequestLog.failed(requestType, attempt, rejection, get.getURI().toString());
+                    }
+                    if (response.getEntity() != null) {
+                        response.setEntity(new CountingEntity(response.getEntity(), metrics));
+                    }
+                    return new Response(response, timeout);
+                }
+
+                failure = response.getStatusLine().toString();
+                throttled = isThrottled(response);
+                retryAfterSeconds = getRetryAfterSeconds(response, System.currentTimeMillis());
+                response.close();
+                release(timeout);
+            } catch (IOException | RuntimeException e) {
+                release(timeout);
+                failure = e.toString();
+            }
+
+            circuitBreaker.onFailure();
+            if (!retryPolicy.canRetry(attempt)) {
+                metrics.requestFailed();
+                failedRequestLog.failed(requestType, attempt, failure, get.getURI().toString());
+                throw new IOException("Request failed after " + attempt + " attempts: " + failure);
+            }
+
+            long delayMs = retryPolicy.getDelayMs(attempt, retryAfterSeconds);
+            logger.warn("Request failed: " + failure + " attempt: " + attempt + ", retrying in " + delayMs + " ms");
+            metrics.retry();
+            failedRequestLog.retried(requestType, attempt, failure, get.getURI().toString());
+            if (throttled) {
+                // Whole crawl slows down when the API asks for it
+                rateLimiter.backOff(delayMs);
+            } else {
+                TimeUnit.MILLISECONDS.sleep(delayMs);
+            }
+            attempt++;
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        timeoutScheduler.shutdownNow();
+        httpClient.close();
+        connectionManager.shutdown();
+        logger.info("Closed http connection pool");
+    }
+}
@@ -0,0 +1,35 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+
+
+/**
+ * Storage of downloaded article texts. Every stored article has a location relative to the data directory,
+ * which is kept in the page index, the crawl journal and the csv file.
+ */
+interface ArticleStorage extends Closeable {
+
+    /**
+     * Article being written. Its location is known only on commit, because the file name depends on the title,
+     * which may come after the extract in the API response.
+     */
+    interface PendingArticle {
+        // Must be closed before commit
+        Writer getWriter();
+
+        String commit(String title) throws IOException;
+
+        // Drops an article which is not to be committed, its writer must be closed
+        void discard() throws IOException;
+    }
+
+
+    PendingArticle create(Path directory, String fileId) throws IOException;
+
+    // Stores unchanged article of the previous run under new file id, returns null if it is not available
+    String reuse(String previousLocation, Path directory, String fileId, String title) throws IOException;
+
+    // Returns false if nothing was deleted
+    boolean delete(String location) throws IOException;
+}
@@ -0,0 +1,143 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Pauses all API requests of the crawl while the API is degraded.
+ * After the given number of consecutive failed requests the breaker opens and requests wait for the pause.
+ * Then a single trial request is let through: success closes the breaker, failure opens it again
+ * with the pause doubled up to the max pause.
+ */
+class CircuitBreaker {
+    private static final Logger logger = LogManager.getLogger(CircuitBreaker.class);
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long pauseNanos;
+    private final long maxPauseNanos;
+    private final LongSupplier nanoClock;
+    // Not a monitor, so virtual threads waiting for the breaker do not pin their carrier threads
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition stateChanged = lock.newCondition();
+
+    // Guarded by lock
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long currentPauseNanos;
+    private long openUntilNanos;
+    private boolean trialInFlight;
+
+
+    // failureThreshold <= 0 disables the breaker
+    CircuitBreaker(int failureThreshold, long pauseSeconds, long maxPauseSeconds) {
+        this(failureThreshold, pauseSeconds, maxPauseSeconds, System::nanoTime);
+    }
+
+    // Clock in nanoseconds is given by tests
+    CircuitBreaker(int failureThreshold, long pauseSeconds, long maxPauseSeconds, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.failureThreshold = failureThreshold;
+        this.pauseNanos = TimeUnit.SECONDS.toNanos(Math.max(1, pauseSeconds));
+        this.maxPauseNanos = Math.max(pauseNanos, TimeUnit.SECONDS.toNanos(maxPauseSeconds));
+        this.currentPauseNanos = pauseNanos;
+    }
+
+
+    // Waits while the breaker is open or another request is the trial one
+    void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                long nowNanos = nanoClock.getAsLong();
+                if (pass(nowNanos)) {
+                    return;
+                }
+                if (state == State.OPEN) {
+                    stateChanged.awaitNanos(openUntilNanos - nowNanos);
+                } else {
+                    stateChanged.await();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Same as acquire, but returns false instead of waiting
+    boolean tryAcquire() {
+        lock.lock();
+        try {
+            return pass(nanoClock.getAsLong());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called under lock. Whether the request may go now, the breaker turns half open after the pause
+    private boolean pass(long nowNanos) {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN && nowNanos >= openUntilNanos) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN && !trialInFlight) {
+            trialInFlight = true;
+            return true;
+        }
+        return false;
+    }
+
+
+    void onSuccess() {
+        lock.lock();
+        try {
+            consecutiveFailures = 0;
+            if (state != State.CLOSED) {
+                state = State.CLOSED;
+                trialInFlight = false;
+                currentPauseNanos = pauseNanos;
+                logger.info("Circuit breaker closed, requests resumed");
+                stateChanged.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void onFailure() {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            consecutiveFailures++;
+            if (state == State.HALF_OPEN) {
+                trialInFlight = false;
+                currentPauseNanos = Math.min(maxPauseNanos, currentPauseNanos * 2);
+                open();
+            } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+                open();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntilNanos = nanoClock.getAsLong() + currentPauseNanos;
+        logger.warn("Circuit breaker opened after " + consecutiveFailures + " failed requests, requests paused for " +
+                TimeUnit.NANOSECONDS.toSeconds(currentPauseNanos) + " s");
+        stateChanged.signalAll();
+    }
+}
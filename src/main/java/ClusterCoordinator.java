@@ -0,0 +1,70 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Coordinator of a distributed crawl: publishes global categories as tasks in the lease directory,
+ * gives back leases of workers which stopped renewing them and, when no task is left,
+ * merges the results into the data directory. A restarted coordinator continues with tasks already published.
+ */
+class ClusterCoordinator {
+    private static final Logger logger = LogManager.getLogger(ClusterCoordinator.class);
+
+    private static final long pollMs = 2000;
+
+
+    static void run() throws IOException, InterruptedException {
+        ClusterLeases leases = new ClusterLeases(Main.getClusterDirectoryPath());
+        long leaseTimeoutMs = TimeUnit.SECONDS.toMillis(Main.getClusterLeaseTimeoutSeconds());
+
+        if (leases.isPublished()) {
+            logger.info("Tasks already published in " + Main.getClusterDirectoryPath() + ", waiting for them");
+        } else {
+            Map<Integer, String> globalCategories = new LinkedHashMap<>();
+            Set<String> keys = new HashSet<>();
+            for (Map.Entry<Integer, String> globalCategory : Main.getGlobalCategories().entrySet()) {
+                String key = Main.getWiki(globalCategory.getKey()).key(globalCategory.getValue().trim());
+                if (!keys.add(key)) {
+                    logger.warn("Category is listed twice: " + key);
+                    continue;
+                }
+                globalCategories.put(globalCategory.getKey(), globalCategory.getValue());
+            }
+            leases.publish(globalCategories);
+        }
+
+        int lastLeftCount = -1;
+        while (true) {
+            leases.requeueExpired(leaseTimeoutMs, Main.getClusterMaxAttempts());
+            int leftCount = leases.getTaskCount() + leases.getLeasedCount();
+            if (leftCount == 0) {
+                break;
+            }
+            if (leftCount != lastLeftCount) {
+                logger.info("Tasks left: " + leftCount + ", completed: " + leases.getDoneTaskNames().size());
+                lastLeftCount = leftCount;
+            }
+            Thread.sleep(pollMs);
+        }
+
+        List<String> failedTaskNames = leases.getFailedTaskNames();
+        if (!failedTaskNames.isEmpty()) {
+            logger.error("Tasks not completed after " + Main.getClusterMaxAttempts() + " attempts: " +
+                    failedTaskNames + ", their results are not merged");
+        }
+
+        try (ClusterMerge merge = new ClusterMerge(Main.getDataDirectoryPath(), Main.getCsvFilename())) {
+            for (String taskName : leases.getDoneTaskNames()) {
+                merge.addResult(leases.getResultPath(taskName), taskName);
+            }
+        }
+    }
+}
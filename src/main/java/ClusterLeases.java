@@ -0,0 +1,276 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Lease directory shared by the coordinator and workers of a distributed crawl, one file per global category.
+ * A task file moves from tasks/ to leased/worker id/ when a worker takes it, to done/ when its crawl is completed
+ * and to failed/ after too many attempts. Renaming within a directory tree is atomic, so a task is taken
+ * by one worker only. Workers renew their leases by touching the files, leases not renewed in time
+ * are given back to tasks/, or to failed/ after too many attempts, by the coordinator.
+ * Crawl data of a task is kept in results/task name/, so the next worker taking the task resumes it from the journal.
+ */
+class ClusterLeases {
+    private static final Logger logger = LogManager.getLogger(ClusterLeases.class);
+
+    private static final String tasksDirectoryName = "tasks";
+    private static final String leasedDirectoryName = "leased";
+    private static final String doneDirectoryName = "done";
+    private static final String failedDirectoryName = "failed";
+    private static final String resultsDirectoryName = "results";
+    // Written after all tasks are published, workers wait for it
+    private static final String publishedFilename = "published";
+    // Expired lease in tasks/ before and after its attempts are counted, ignored by workers like other part files
+    private static final String expiredSuffix = ".expired.part";
+    private static final String requeueSuffix = ".requeue.part";
+
+    // Task file content: global category number, global category and attempts, tab separated
+    static class Lease {
+        private final String taskName;
+        private final int categoryNumber;
+        private final String category;
+        private final int attempts;
+        private final Path path;
+
+        Lease(String taskName, int categoryNumber, String category, int attempts, Path path) {
+            this.taskName = taskName;
+            this.categoryNumber = categoryNumber;
+            this.category = category;
+            this.attempts = attempts;
+            this.path = path;
+        }
+
+        String getTaskName() {
+            return taskName;
+        }
+
+        int getCategoryNumber() {
+            return categoryNumber;
+        }
+
+        String getCategory() {
+            return category;
+        }
+
+        int getAttempts() {
+            return attempts;
+        }
+    }
+
+    private final Path clusterDirectoryPath;
+    private final Path tasksPath;
+    private final Path leasedPath;
+    private final Path donePath;
+    private final Path failedPath;
+
+
+    ClusterLeases(Path clusterDirectoryPath) throws IOException {
+        this.clusterDirectoryPath = clusterDirectoryPath;
+        this.tasksPath = Paths.get(clusterDirectoryPath.toString(), tasksDirectoryName);
+        this.leasedPath = Paths.get(clusterDirectoryPath.toString(), leasedDirectoryName);
+        this.donePath = Paths.get(clusterDirectoryPath.toString(), doneDirectoryName);
+        this.failedPath = Paths.get(clusterDirectoryPath.toString(), failedDirectoryName);
+        for (Path path : List.of(tasksPath, leasedPath, donePath, failedPath, getResultsPath())) {
+            Files.createDirectories(path);
+        }
+    }
+
+
+    private Path getResultsPath() {
+        return Paths.get(clusterDirectoryPath.toString(), resultsDirectoryName);
+    }
+
+    // Data directory of a task crawl
+    Path getResultPath(String taskName) {
+        return Paths.get(getResultsPath().toString(), taskName);
+    }
+
+    static String taskName(int categoryNumber, String category) {
+        return String.format("%02d", categoryNumber) + "_" + category.trim();
+    }
+
+
+    private static void writeTask(Path path, int categoryNumber, String category, int attempts) throws IOException {
+        Path tempPath = Paths.get(path.toString() + ".part");
+        Files.write(tempPath, String.join("\t", String.valueOf(categoryNumber), category, String.valueOf(attempts))
+                .getBytes(StandardCharsets.UTF_8));
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Lease readTask(Path path) throws IOException {
+        String[] fields = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).split("\t", -1);
+        return new Lease(path.getFileName().toString(), Integer.parseInt(fields[0]), fields[1],
+                Integer.parseInt(fields[2]), path);
+    }
+
+    private static List<Path> listFiles(Path directoryPath) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directoryPath)) {
+            for (Path path : stream) {
+                if (!path.getFileName().toString().endsWith(".part")) {
+                    paths.add(path);
+                }
+            }
+        }
+        paths.sort(null);
+        return paths;
+    }
+
+
+    boolean isPublished() {
+        return Files.exists(Paths.get(clusterDirectoryPath.toString(), publishedFilename));
+    }
+
+    // Global category number -> global category
+    void publish(Map<Integer, String> globalCategories) throws IOException {
+        for (Map.Entry<Integer, String> globalCategory : globalCategories.entrySet()) {
+            String taskName = taskName(globalCategory.getKey(), globalCategory.getValue());
+            writeTask(Paths.get(tasksPath.toString(), taskName), globalCategory.getKey(), globalCategory.getValue(),
+                    0);
+        }
+        Files.createFile(Paths.get(clusterDirectoryPath.toString(), publishedFilename));
+        logger.info("Published " + globalCategories.size() + " tasks in " + clusterDirectoryPath.toString());
+    }
+
+
+    // Takes the first free task, null if there is none
+    Lease acquire(String workerId) throws IOException {
+        Path workerLeasedPath = Paths.get(leasedPath.toString(), workerId);
+        Files.createDirectories(workerLeasedPath);
+
+        for (Path taskPath : listFiles(tasksPath)) {
+            Path leasePath = Paths.get(workerLeasedPath.toString(), taskPath.getFileName().toString());
+            try {
+                // Renaming keeps the modification time, the lease starts now
+                Files.setLastModifiedTime(taskPath, FileTime.fromMillis(System.currentTimeMillis()));
+                Files.move(taskPath, leasePath, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                // Taken by another worker
+                continue;
+            } catch (AtomicMoveNotSupportedException e) {
+                throw new IOException("Cluster directory does not support atomic renaming: " +
+                        clusterDirectoryPath.toString(), e);
+            }
+            return readTask(leasePath);
+        }
+        return null;
+    }
+
+    // Returns false if the lease was lost
+    boolean renew(Lease lease) throws IOException {
+        try {
+            Files.setLastModifiedTime(lease.path, FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    void complete(Lease lease) throws IOException {
+        Files.move(lease.path, Paths.get(donePath.toString(), lease.taskName), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Task goes back to be resumed by any worker, or to failed/ after the given number of attempts
+    void release(Lease lease, int maxAttempts) throws IOException {
+        int attempts = lease.attempts + 1;
+        writeTask(lease.path, lease.categoryNumber, lease.category, attempts);
+        Path targetPath = attempts >= maxAttempts ? failedPath : tasksPath;
+        Files.move(lease.path, Paths.get(targetPath.toString(), lease.taskName), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    // Gives back leases of workers which did not renew them in time, an expiry counts as a failed attempt,
+    // so a task which keeps stopping its workers ends in failed/ like a released one. Returns number of such leases
+    int requeueExpired(long leaseTimeoutMs, int maxAttempts) throws IOException {
+        int count = 0;
+        long expiredBefore = System.currentTimeMillis() - leaseTimeoutMs;
+        for (Path workerLeasedPath : listFiles(leasedPath)) {
+            for (Path leasePath : listFiles(workerLeasedPath)) {
+                String taskName = leasePath.getFileName().toString();
+                try {
+                    if (Files.getLastModifiedTime(leasePath).toMillis() >= expiredBefore) {
+                        continue;
+                    }
+                    // Hidden from workers until its attempts are counted
+                    Files.move(leasePath, Paths.get(tasksPath.toString(), taskName + expiredSuffix),
+                            StandardCopyOption.ATOMIC_MOVE);
+                    logger.warn("Lease expired: " + taskName + " of worker " + workerLeasedPath.getFileName());
+                    count++;
+                } catch (NoSuchFileException e) {
+                    // Completed or released meanwhile
+                }
+            }
+        }
+
+        // Also finishes tasks left on the way by a coordinator which stopped before
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tasksPath, "*" + expiredSuffix)) {
+            for (Path expiredPath : stream) {
+                String filename = expiredPath.getFileName().toString();
+                Path requeuePath = Paths.get(tasksPath.toString(),
+                        filename.substring(0, filename.length() - expiredSuffix.length()) + requeueSuffix);
+                if (!Files.exists(requeuePath)) {
+                    Lease lease = readTask(expiredPath);
+                    writeTask(requeuePath, lease.categoryNumber, lease.category, lease.attempts + 1);
+                }
+                Files.delete(expiredPath);
+            }
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tasksPath, "*" + requeueSuffix)) {
+            for (Path requeuePath : stream) {
+                String filename = requeuePath.getFileName().toString();
+                String taskName = filename.substring(0, filename.length() - requeueSuffix.length());
+                Lease lease = readTask(requeuePath);
+                if (lease.attempts >= maxAttempts) {
+                    logger.error("Task failed after " + lease.attempts + " attempts: " + taskName);
+                }
+                Path targetPath = lease.attempts >= maxAttempts ? failedPath : tasksPath;
+                Files.move(requeuePath, Paths.get(targetPath.toString(), taskName), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        return count;
+    }
+
+
+    int getTaskCount() throws IOException {
+        return listFiles(tasksPath).size();
+    }
+
+    int getLeasedCount() throws IOException {
+        int count = 0;
+        for (Path workerLeasedPath : listFiles(leasedPath)) {
+            count += listFiles(workerLeasedPath).size();
+        }
+        return count;
+    }
+
+    // Task names of completed tasks, ordered by global category number
+    List<String> getDoneTaskNames() throws IOException {
+        List<String> taskNames = new ArrayList<>();
+        for (Path path : listFiles(donePath)) {
+            taskNames.add(path.getFileName().toString());
+        }
+        return taskNames;
+    }
+
+    List<String> getFailedTaskNames() throws IOException {
+        List<String> taskNames = new ArrayList<>();
+        for (Path path : listFiles(failedPath)) {
+            taskNames.add(path.getFileName().toString());
+        }
+        return taskNames;
+    }
+}
@@ -0,0 +1,199 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Builds the data directory of a distributed crawl from the results of its tasks: articles, csv and page index.
+ * Articles are hard linked, or copied if linking fails, so the results stay intact and merging can be repeated.
+ * Tasks are crawled independently, so a page shared by global categories is saved by several of them.
+ * The copy of the task with the lowest number is kept, rows of the others become references to it,
+ * like rows of pages shared by categories of a single crawl.
+ */
+class ClusterMerge implements Closeable {
+    private static final Logger logger = LogManager.getLogger(ClusterMerge.class);
+
+    private final Path dataDirectoryPath;
+    private final CsvSink csvSink;
+    private final PageIndex pageIndex;
+    private final BufferedWriter articleIndexWriter;
+    // Page id -> file id of the kept copy
+    private final Map<String, String> pageFileIds = new HashMap<>();
+    private int taskCount;
+    private int pageCount;
+    private int duplicateCount;
+
+
+    ClusterMerge(Path dataDirectoryPath, String csvFilename) throws IOException {
+        this.dataDirectoryPath = dataDirectoryPath;
+        Crawler.deleteDataDirectory(dataDirectoryPath);
+        Files.createDirectories(dataDirectoryPath);
+        csvSink = new CsvSink(Paths.get(dataDirectoryPath.toString(), csvFilename));
+        pageIndex = new PageIndex(dataDirectoryPath, false);
+        articleIndexWriter = Files.newBufferedWriter(Paths.get(dataDirectoryPath.toString(),
+                PackArticleStorage.indexFilename), StandardCharsets.UTF_8);
+    }
+
+
+    // Pack names repeat across tasks, so packs are renamed after their task
+    private static String renamePack(String packName, String taskName) {
+        return taskName + "-" + packName;
+    }
+
+    private static String relocate(String location, String taskName) {
+        if (!PackReader.isPackLocation(location)) {
+            return location;
+        }
+        return PackArticleStorage.packDirectoryName + "/" +
+                renamePack(location.substring(PackArticleStorage.packDirectoryName.length() + 1), taskName);
+    }
+
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    private void linkArticles(Path resultPath, String taskName) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(resultPath)) {
+            for (Path path : stream) {
+                if (!Files.isDirectory(path)) {
+                    continue;
+                }
+                boolean packs = path.getFileName().toString().equals(PackArticleStorage.packDirectoryName);
+                Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        // Articles left unfinished by an interrupted crawl
+                        if (file.getFileName().toString().endsWith(".part")) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        Path target = packs
+                                ? Paths.get(dataDirectoryPath.toString(), PackArticleStorage.packDirectoryName,
+                                        renamePack(file.getFileName().toString(), taskName))
+                                : Paths.get(dataDirectoryPath.toString(), resultPath.relativize(file).toString());
+                        linkOrCopy(file, target);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        }
+    }
+
+
+    // Row of a saved page turned into a reference to the kept copy: length and location are dropped.
+    // Rows end with known length, empty original file id and location, so the title is never parsed
+    private static String makeReferenceRow(CrawlJournal.PageRecord record, String originalFileId) {
+        String row = record.getCsvRow();
+        String suffix = "," + record.getPageLength() + ",,\"" + record.getRelativePath() + "\"";
+        if (!row.endsWith(suffix)) {
+            logger.warn("Unexpected csv row, kept as is: " + row);
+            return row;
+        }
+        return row.substring(0, row.length() - suffix.length()) + ",,\"" + originalFileId + "\",";
+    }
+
+    // Reference rows end with quoted original file id and empty location
+    private String relinkReferenceRow(CrawlJournal.PageRecord record) {
+        String row = record.getCsvRow();
+        String originalFileId = pageFileIds.get(record.getPageId());
+        int end = row.length() - "\",".length();
+        int start = row.lastIndexOf(",\"", end - 1);
+        if (originalFileId == null || start < 0 || !row.endsWith("\",")) {
+            return row;
+        }
+        return row.substring(0, start) + ",\"" + originalFileId + row.substring(end);
+    }
+
+
+    void addResult(Path resultPath, String taskName) throws IOException {
+        Path journalPath = Paths.get(resultPath.toString(), Crawler.journalFilename);
+        if (!Files.exists(journalPath)) {
+            logger.error("No crawl journal in " + resultPath.toString() + ", task skipped");
+            return;
+        }
+        linkArticles(resultPath, taskName);
+
+        // Saved pages first, references of the task may be journaled before the pages they refer to
+        Set<String> droppedFileIds = new HashSet<>();
+        CrawlJournal.readPages(journalPath, record -> {
+            if (record.isReference()) {
+                return;
+            }
+            String location = relocate(record.getRelativePath(), taskName);
+            String originalFileId = pageFileIds.putIfAbsent(record.getPageId(), record.getFileId());
+            if (originalFileId == null) {
+                String row = record.getCsvRow();
+                if (!location.equals(record.getRelativePath())) {
+                    row = row.substring(0, row.length() - record.getRelativePath().length() - 1) + location + "\"";
+                }
+                csvSink.addRow(row);
+                pageIndex.pageSaved(record.getPageId(), record.getRevisionId(), record.getPageLength(), location);
+                pageCount++;
+            } else {
+                csvSink.addRow(makeReferenceRow(record, originalFileId));
+                droppedFileIds.add(record.getFileId());
+                if (!PackReader.isPackLocation(location)) {
+                    Files.deleteIfExists(Paths.get(dataDirectoryPath.toString(), location));
+                }
+                duplicateCount++;
+            }
+        });
+        CrawlJournal.readPages(journalPath, record -> {
+            if (record.isReference()) {
+                csvSink.addRow(relinkReferenceRow(record));
+            }
+        });
+
+        Path articleIndexPath = Paths.get(resultPath.toString(), PackArticleStorage.indexFilename);
+        if (Files.exists(articleIndexPath)) {
+            try (BufferedReader reader = Files.newBufferedReader(articleIndexPath, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length == 3 && !droppedFileIds.contains(fields[0])) {
+                        articleIndexWriter.write(String.join("\t", fields[0], relocate(fields[1], taskName),
+                                fields[2]));
+                        articleIndexWriter.newLine();
+                    }
+                }
+            }
+        }
+        taskCount++;
+        logger.info("Merged results of " + taskName);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        articleIndexWriter.close();
+        csvSink.close();
+        pageIndex.write();
+        if (Files.size(Paths.get(dataDirectoryPath.toString(), PackArticleStorage.indexFilename)) == 0) {
+            Files.delete(Paths.get(dataDirectoryPath.toString(), PackArticleStorage.indexFilename));
+        }
+        logger.info("Merged " + taskCount + " tasks: " + pageCount + " pages, " + duplicateCount +
+                " pages saved by several tasks");
+    }
+}
@@ -0,0 +1,107 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Worker of a distributed crawl: takes global categories from the lease directory one by one
+ * and crawls each into its result directory, renewing the lease meanwhile. A crawl whose lease is lost is cancelled.
+ * Exits when no task is free or leased by other workers.
+ */
+class ClusterWorker {
+    private static final Logger logger = LogManager.getLogger(ClusterWorker.class);
+
+    private static final long idlePollMs = 2000;
+
+
+    static void run() throws IOException, InterruptedException {
+        String workerId = Main.getClusterWorkerId();
+        ClusterLeases leases = new ClusterLeases(Main.getClusterDirectoryPath());
+        long leaseTimeoutMs = TimeUnit.SECONDS.toMillis(Main.getClusterLeaseTimeoutSeconds());
+
+        while (!leases.isPublished()) {
+            logger.info("Waiting for the coordinator to publish tasks in " + Main.getClusterDirectoryPath());
+            Thread.sleep(idlePollMs);
+        }
+
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            while (true) {
+                ClusterLeases.Lease lease = leases.acquire(workerId);
+                if (lease == null) {
+                    // Leases of other workers may still expire and come back
+                    if (leases.getLeasedCount() == 0 && leases.getTaskCount() == 0) {
+                        break;
+                    }
+                    Thread.sleep(idlePollMs);
+                    continue;
+                }
+                crawl(leases, lease, renewer, leaseTimeoutMs);
+            }
+        } finally {
+            renewer.shutdownNow();
+        }
+        logger.info("Worker " + workerId + " finished, no tasks left");
+    }
+
+
+    private static void crawl(ClusterLeases leases, ClusterLeases.Lease lease, ScheduledExecutorService renewer,
+                              long leaseTimeoutMs) throws IOException, InterruptedException {
+        logger.info("Leased " + lease.getTaskName() + ", attempt " + (lease.getAttempts() + 1));
+
+        long renewIntervalMs = Math.max(1, leaseTimeoutMs / 3);
+        AtomicBoolean lost = new AtomicBoolean();
+        ScheduledFuture<?> renewal = renewer.scheduleAtFixedRate(() -> {
+            try {
+                // Another worker may already resume the task in the same result directory
+                if (!lost.get() && !leases.renew(lease)) {
+                    lost.set(true);
+                    logger.error("Lease lost: " + lease.getTaskName() + ", cancelling its crawl");
+                    Crawler.cancel();
+                }
+            } catch (IOException e) {
+                logger.error("Cannot renew lease " + lease.getTaskName());
+                logger.error(e);
+            }
+        }, renewIntervalMs, renewIntervalMs, TimeUnit.MILLISECONDS);
+
+        boolean completed;
+        try {
+            Path resultPath = leases.getResultPath(lease.getTaskName());
+            // Result of an earlier attempt is resumed from its journal
+            boolean resume = Files.exists(Paths.get(resultPath.toString(), Crawler.journalFilename));
+            completed = Crawler.run(resultPath, Map.of(lease.getCategoryNumber(), lease.getCategory()), resume);
+        } finally {
+            renewal.cancel(false);
+        }
+
+        if (lost.get()) {
+            // Task is not ours anymore, it is neither completed nor released by this worker
+            logger.warn("Not completed " + lease.getTaskName() + ", lease lost");
+            return;
+        }
+        try {
+            if (completed) {
+                leases.complete(lease);
+                logger.info("Completed " + lease.getTaskName());
+            } else {
+                leases.release(lease, Main.getClusterMaxAttempts());
+                logger.warn("Not completed " + lease.getTaskName() + ", given back to be resumed");
+            }
+        } catch (IOException e) {
+            // Lease expired and was given to another worker, which resumes the task from its journal
+            logger.error("Cannot finish lease " + lease.getTaskName());
+            logger.error(e);
+        }
+    }
+}
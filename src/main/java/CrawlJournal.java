@@ -0,0 +1,343 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Append-only log of crawl progress, one tab separated record per line:
+ * T - task enqueued with the name of its wiki and the page id of its category,
+ * D - task completed with its count of saved pages, P - page saved with its file id, revision, length, file path
+ * and csv row, R - page already saved in another category with its csv row.
+ * Pages are recorded by their keys qualified with the wiki name.
+ * Pages saved by tasks which are not completed are kept in memory by numeric page keys, in a set per task prefix.
+ * Replaying the log restores pending tasks, page counts, saved pages, page index and csv rows
+ * of an interrupted crawl.
+ */
+class CrawlJournal implements Closeable {
+    private static final Logger logger = LogManager.getLogger(CrawlJournal.class);
+
+    private static final String taskRecord = "T";
+    private static final String doneRecord = "D";
+    private static final String pageRecord = "P";
+    private static final String referenceRecord = "R";
+    private static final int csvRowsPerWrite = 10000;
+    // Most categories have few pages
+    private static final int initialSavedPagesCapacity = 16;
+
+    // Saved or referenced page of a journal, file id, revision, length and location are known for saved pages only
+    static class PageRecord {
+        private final String pageId;
+        private final String fileId;
+        private final long revisionId;
+        private final int pageLength;
+        private final String relativePath;
+        private final String csvRow;
+
+        PageRecord(String pageId, String fileId, long revisionId, int pageLength, String relativePath,
+                   String csvRow) {
+            this.pageId = pageId;
+            this.fileId = fileId;
+            this.revisionId = revisionId;
+            this.pageLength = pageLength;
+            this.relativePath = relativePath;
+            this.csvRow = csvRow;
+        }
+
+        boolean isReference() {
+            return fileId == null;
+        }
+
+        String getPageId() {
+            return pageId;
+        }
+
+        String getFileId() {
+            return fileId;
+        }
+
+        long getRevisionId() {
+            return revisionId;
+        }
+
+        int getPageLength() {
+            return pageLength;
+        }
+
+        String getRelativePath() {
+            return relativePath;
+        }
+
+        String getCsvRow() {
+            return csvRow;
+        }
+    }
+
+    interface PageRecordHandler {
+        void accept(PageRecord record) throws IOException;
+    }
+
+    private final BufferedWriter writer;
+    // Not a monitor, so virtual threads waiting for the writer do not pin their carrier threads
+    private final ReentrantLock lock = new ReentrantLock();
+    // Task prefix -> page keys, filled by replay only, since a task lists its category once in a run
+    private final Map<String, LongHashSet> savedPages = new HashMap<>();
+    private final List<TaskParameters> pendingTasks = new ArrayList<>();
+    private final Map<Long, Integer> levelCounts = new HashMap<>();
+    private final Map<String, Integer> savedPageCounts = new HashMap<>();
+    private final Set<String> visitedCategories = new HashSet<>();
+
+
+    // Replay claims the saved pages and marks page keys of categories visited before resume
+    CrawlJournal(Path journalPath, boolean resume, CsvSink csvSink, PageIndex pageIndex, PageClaims pageClaims,
+                 LongHashSet visitedCategoryIds) throws IOException {
+        if (resume) {
+            truncateIncompleteRecord(journalPath);
+            replay(journalPath, csvSink, pageIndex, pageClaims, visitedCategoryIds);
+        }
+        writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                resume ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+
+    private static String pageKey(String filenamePrefix, String pageId) {
+        return filenamePrefix + ":" + pageId;
+    }
+
+    // Returns false if the page was already recorded for the task
+    private boolean addSavedPage(String filenamePrefix, long pageKey) {
+        return savedPages.computeIfAbsent(filenamePrefix, prefix -> new LongHashSet(Main.isOffHeapBookkeeping(),
+                initialSavedPagesCapacity)).add(pageKey);
+    }
+
+    // Prefix of the task which enqueued the task with given prefix
+    private static String parentPrefix(String filenamePrefix) {
+        String withoutLastUnderscore = filenamePrefix.substring(0, filenamePrefix.length() - 1);
+        return withoutLastUnderscore.substring(0, withoutLastUnderscore.lastIndexOf('_') + 1);
+    }
+
+
+    // Last record may be cut off by a crash. It is removed, so records appended on resume start on a new line
+    private static void truncateIncompleteRecord(Path journalPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long completeSize = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            // Offset after the last line separator, searched from the end of the file
+            for (long end = size; end > 0 && completeSize == 0; ) {
+                long start = Math.max(0, end - buffer.capacity());
+                buffer.clear().limit((int) (end - start));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, start + buffer.position()) < 0) {
+                        throw new EOFException("Journal is truncated while read: " + journalPath.toString());
+                    }
+                }
+                for (int i = buffer.limit() - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        completeSize = start + i + 1;
+                        break;
+                    }
+                }
+                end = start;
+            }
+            if (completeSize < size) {
+                logger.warn("Removing incomplete last journal record of " + (size - completeSize) + " bytes");
+                channel.truncate(completeSize);
+            }
+        }
+    }
+
+    private void replay(Path journalPath, CsvSink csvSink, PageIndex pageIndex, PageClaims pageClaims,
+                        LongHashSet visitedCategoryIds) throws IOException {
+        Map<String, TaskParameters> tasks = new LinkedHashMap<>();
+        Map<String, Integer> doneTasks = new HashMap<>();
+        List<String> csvRows = new ArrayList<>();
+        int savedPageCount = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields[0].equals(taskRecord) && fields.length == 8) {
+                    Wiki wiki = Main.getWiki(fields[6]);
+                    if (wiki == null) {
+                        logger.warn("Skipping task of a wiki which is not configured: " + line);
+                        continue;
+                    }
+                    TaskParameters task = new TaskParameters(wiki, fields[4], fields[3], Integer.parseInt(fields[1]),
+                            Paths.get(fields[5]), fields[2]);
+                    if (!fields[7].isEmpty()) {
+                        task.setCategoryPageId(fields[7]);
+                    }
+                    tasks.put(fields[2], task);
+                } else if (fields[0].equals(doneRecord) && fields.length == 3) {
+                    doneTasks.put(fields[1], Integer.parseInt(fields[2]));
+                } else if (fields[0].equals(pageRecord) && fields.length == 8) {
+                    long pageKey = Wiki.parsePageKey(fields[2]);
+                    if (pageKey >= 0 && addSavedPage(fields[1], pageKey)) {
+                        savedPageCount++;
+                        savedPageCounts.merge(fields[1], 1, Integer::sum);
+                        pageClaims.claim(pageKey, fields[3]);
+                        pageClaims.markSaved(pageKey);
+                        pageIndex.pageSaved(fields[2], Long.parseLong(fields[4]), Integer.parseInt(fields[5]),
+                                fields[6]);
+                        csvRows.add(fields[7]);
+                    }
+                } else if (fields[0].equals(referenceRecord) && fields.length == 4) {
+                    long pageKey = Wiki.parsePageKey(fields[2]);
+                    if (pageKey >= 0 && addSavedPage(fields[1], pageKey)) {
+                        savedPageCount++;
+                        csvRows.add(fields[3]);
+                    }
+                } else {
+                    logger.warn("Skipping malformed journal record: " + line);
+                }
+
+                if (csvRows.size() == csvRowsPerWrite) {
+                    csvSink.addRows(csvRows);
+                    csvRows.clear();
+                }
+            }
+        }
+        csvSink.addRows(csvRows);
+
+        for (TaskParameters task : tasks.values()) {
+            String prefix = task.getPrefixForPageFilename();
+            // Pages of unfinished tasks are kept too, so they count against the page budgets
+            if (savedPageCounts.containsKey(prefix)) {
+                levelCounts.merge(task.getLevelKey(),
+                        savedPageCounts.get(prefix), Integer::sum);
+            }
+            boolean visited = doneTasks.containsKey(prefix);
+            if (!visited && (task.getLevel() == 0 || doneTasks.containsKey(parentPrefix(prefix)))) {
+                // Subcategories of unfinished tasks will be enqueued again when their parent is rerun
+                pendingTasks.add(task);
+                visited = true;
+            }
+            if (visited && task.getCategoryPageId() != null) {
+                visitedCategoryIds.add(task.getWiki().pageKey(task.getCategoryPageId()));
+            } else if (visited) {
+                visitedCategories.add(task.getWiki().key(task.getCurrentCategory()));
+            }
+        }
+        pendingTasks.sort(Comparator.comparingInt(TaskParameters::getLevel));
+        // Completed tasks are not listed again
+        savedPages.keySet().removeAll(doneTasks.keySet());
+
+        logger.info("Journal replayed: " + doneTasks.size() + " tasks completed, " + pendingTasks.size() +
+                " tasks pending, " + savedPageCount + " pages saved");
+    }
+
+
+    // Pages of a journal in order of recording, every page of a category once, as replay takes them
+    static void readPages(Path journalPath, PageRecordHandler handler) throws IOException {
+        Set<String> pageKeys = new HashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields[0].equals(pageRecord) && fields.length == 8) {
+                    if (pageKeys.add(pageKey(fields[1], fields[2]))) {
+                        handler.accept(new PageRecord(fields[2], fields[3], Long.parseLong(fields[4]),
+                                Integer.parseInt(fields[5]), fields[6], fields[7]));
+                    }
+                } else if (fields[0].equals(referenceRecord) && fields.length == 4) {
+                    if (pageKeys.add(pageKey(fields[1], fields[2]))) {
+                        handler.accept(new PageRecord(fields[2], null, 0, 0, null, fields[3]));
+                    }
+                }
+            }
+        }
+    }
+
+
+    // Tasks to rerun, ordered by level
+    List<TaskParameters> getPendingTasks() {
+        return pendingTasks;
+    }
+
+    // Global category and level -> pages saved before resume
+    Map<Long, Integer> getLevelCounts() {
+        return levelCounts;
+    }
+
+    // Task prefix -> pages saved before resume
+    int getSavedPageCount(String filenamePrefix) {
+        return savedPageCounts.getOrDefault(filenamePrefix, 0);
+    }
+
+    // Category keys of global categories, whose page ids are not listed, completed or to rerun
+    Set<String> getVisitedCategories() {
+        return visitedCategories;
+    }
+
+    // Page saved by the task before resume
+    boolean isPageSaved(String filenamePrefix, long pageKey) {
+        LongHashSet pages = savedPages.get(filenamePrefix);
+        return pages != null && pages.contains(pageKey);
+    }
+
+
+    private void append(String... fields) throws IOException {
+        lock.lock();
+        try {
+            writer.write(String.join("\t", fields));
+            writer.newLine();
+            writer.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void taskEnqueued(TaskParameters taskParameters) throws IOException {
+        append(taskRecord, String.valueOf(taskParameters.getLevel()), taskParameters.getPrefixForPageFilename(),
+                taskParameters.getGlobalCategory(), taskParameters.getCurrentCategory(),
+                taskParameters.getPathToStoreCategoryPages().toString(), taskParameters.getWiki().getName(),
+                taskParameters.getCategoryPageId() == null ? "" : taskParameters.getCategoryPageId());
+    }
+
+    void taskCompleted(String filenamePrefix, int savedPagesCount) throws IOException {
+        append(doneRecord, filenamePrefix, String.valueOf(savedPagesCount));
+    }
+
+    void pageSaved(String filenamePrefix, String pageId, String fileId, long revisionId, int pageLength,
+                   String relativePath, String csvRow) throws IOException {
+        append(pageRecord, filenamePrefix, pageId, fileId, String.valueOf(revisionId), String.valueOf(pageLength),
+                relativePath, csvRow);
+    }
+
+    void pageReferenced(String filenamePrefix, String pageId, String csvRow) throws IOException {
+        append(referenceRecord, filenamePrefix, pageId, csvRow);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            writer.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,404 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters of a crawl: requests and their latency by request type, downloaded bytes and pages, retries,
+ * queue depth, tasks in flight and worker utilization. Updated lock free from all workers, published over JMX,
+ * logged periodically while the crawl runs and summarized at its end.
+ */
+class CrawlMetrics implements CrawlMetricsMXBean {
+    private static final Logger logger = LogManager.getLogger(CrawlMetrics.class);
+
+    private static final String objectName = "WikiCrawler:type=CrawlMetrics";
+
+    enum RequestType {
+        CATEGORY, PAGES, INFO, CATEGORY_INFO, CATEGORY_PAGES;
+
+        String key() {
+            return name().toLowerCase();
+        }
+    }
+
+
+    // Latency histogram with fixed buckets, percentiles are reported as upper bounds of their buckets
+    static class LatencyHistogram {
+        private static final long[] bucketBoundsMs = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+        private final AtomicLongArray buckets = new AtomicLongArray(bucketBoundsMs.length + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < bucketBoundsMs.length && ms > bucketBoundsMs[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        double getMeanMs() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+        }
+
+        double getMaxMs() {
+            return maxNanos.get() / 1e6;
+        }
+
+        double getPercentileMs(double percentile) {
+            long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * percentile);
+            long seen = 0;
+            for (int bucket = 0; bucket < bucketBoundsMs.length; bucket++) {
+                seen += buckets.get(bucket);
+                if (seen >= rank) {
+                    return Math.min(bucketBoundsMs[bucket], getMaxMs());
+                }
+            }
+            return getMaxMs();
+        }
+    }
+
+
+    // Tasks of one executor. Busy time over elapsed time is the mean number of tasks in flight, utilization
+    // relates it to the configured number of workers. Executor of virtual threads has no such number, 0 here
+    static class WorkerStats {
+        private final int workerCount;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger peakActive = new AtomicInteger();
+        private final LongAdder busyNanos = new LongAdder();
+
+        WorkerStats(int workerCount) {
+            this.workerCount = workerCount;
+        }
+
+        void taskQueued() {
+            queued.incrementAndGet();
+        }
+
+        // Returns start time to pass to taskFinished
+        long taskStarted() {
+            queued.decrementAndGet();
+            peakActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            return System.nanoTime();
+        }
+
+        void taskFinished(long startNanos) {
+            busyNanos.add(System.nanoTime() - startNanos);
+            active.decrementAndGet();
+        }
+    }
+
+
+    private final long startNanos = System.nanoTime();
+    private final Map<RequestType, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final LongAdder bytesDownloaded = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder pagesDownloaded = new LongAdder();
+    private final LongAdder pagesReused = new LongAdder();
+    private final LongAdder pagesReferenced = new LongAdder();
+    private final WorkerStats categoryWorkers;
+    private final WorkerStats pageWorkers;
+    private ScheduledExecutorService reporter;
+
+
+    CrawlMetrics(int categoryWorkerCount, int pageWorkerCount) {
+        for (RequestType type : RequestType.values()) {
+            latencies.put(type, new LatencyHistogram());
+        }
+        categoryWorkers = new WorkerStats(categoryWorkerCount);
+        pageWorkers = new WorkerStats(pageWorkerCount);
+    }
+
+
+    void recordRequest(RequestType type, long nanos) {
+        latencies.get(type).record(nanos);
+    }
+
+    void addBytes(long count) {
+        bytesDownloaded.add(count);
+    }
+
+    void retry() {
+        retries.increment();
+    }
+
+    void requestFailed() {
+        failedRequests.increment();
+    }
+
+    void cacheHit() {
+        cacheHits.increment();
+    }
+
+    void cacheMissed() {
+        cacheMisses.increment();
+    }
+
+    void pageDownloaded() {
+        pagesDownloaded.increment();
+    }
+
+    void pageReused() {
+        pagesReused.increment();
+    }
+
+    void pageReferenced() {
+        pagesReferenced.increment();
+    }
+
+    WorkerStats getCategoryWorkers() {
+        return categoryWorkers;
+    }
+
+    WorkerStats getPageWorkers() {
+        return pageWorkers;
+    }
+
+
+    private long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    private double meanInFlight(WorkerStats workers) {
+        return workers.busyNanos.sum() / (double) elapsedNanos();
+    }
+
+    private double utilization(WorkerStats workers) {
+        return workers.workerCount > 0 ? meanInFlight(workers) / workers.workerCount : Double.NaN;
+    }
+
+    private String describe(String name, WorkerStats workers) {
+        return workers.workerCount > 0
+                ? String.format("%s %.0f%% of %d workers", name, utilization(workers) * 100, workers.workerCount)
+                : String.format("%s %.1f mean, %d peak", name, meanInFlight(workers), workers.peakActive.get());
+    }
+
+    @Override
+    public long getElapsedSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(elapsedNanos());
+    }
+
+    @Override
+    public long getPagesDownloaded() {
+        return pagesDownloaded.sum();
+    }
+
+    @Override
+    public long getPagesReused() {
+        return pagesReused.sum();
+    }
+
+    @Override
+    public long getPagesReferenced() {
+        return pagesReferenced.sum();
+    }
+
+    @Override
+    public double getPagesPerSecond() {
+        return pagesDownloaded.sum() / (elapsedNanos() / 1e9);
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failedRequests.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        latencies.forEach((type, histogram) -> counts.put(type.key(), histogram.getCount()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getRequestLatencyMs() {
+        Map<String, Double> values = new LinkedHashMap<>();
+        latencies.forEach((type, histogram) -> {
+            values.put(type.key() + ".mean", histogram.getMeanMs());
+            values.put(type.key() + ".p50", histogram.getPercentileMs(0.5));
+            values.put(type.key() + ".p95", histogram.getPercentileMs(0.95));
+            values.put(type.key() + ".p99", histogram.getPercentileMs(0.99));
+            values.put(type.key() + ".max", histogram.getMaxMs());
+        });
+        return values;
+    }
+
+    @Override
+    public int getQueuedTasks() {
+        return categoryWorkers.queued.get() + pageWorkers.queued.get();
+    }
+
+    @Override
+    public int getWaitingTasks() {
+        LevelScheduler scheduler = Crawler.getScheduler();
+        return scheduler == null ? 0 : scheduler.getWaitingTaskCount();
+    }
+
+    @Override
+    public int getActiveCategoryWorkers() {
+        return categoryWorkers.active.get();
+    }
+
+    @Override
+    public int getActivePageWorkers() {
+        return pageWorkers.active.get();
+    }
+
+    @Override
+    public double getCategoryWorkerUtilization() {
+        return utilization(categoryWorkers);
+    }
+
+    @Override
+    public double getPageWorkerUtilization() {
+        return utilization(pageWorkers);
+    }
+
+    @Override
+    public double getMeanCategoryTasksInFlight() {
+        return meanInFlight(categoryWorkers);
+    }
+
+    @Override
+    public double getMeanPageTasksInFlight() {
+        return meanInFlight(pageWorkers);
+    }
+
+    @Override
+    public int getPeakCategoryTasksInFlight() {
+        return categoryWorkers.peakActive.get();
+    }
+
+    @Override
+    public int getPeakPageTasksInFlight() {
+        return pageWorkers.peakActive.get();
+    }
+
+    @Override
+    public Map<String, Integer> getLevelCounts() {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        Crawler.getBudgets().getLevelCounts().forEach((levelKey, count) ->
+                counts.put(PageBudgets.levelName(levelKey), count));
+        return counts;
+    }
+
+
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(objectName));
+        } catch (JMException e) {
+            logger.warn("Cannot register metrics in JMX: " + e);
+        }
+    }
+
+    void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(new ObjectName(objectName));
+        } catch (JMException e) {
+            logger.warn("Cannot unregister metrics from JMX: " + e);
+        }
+    }
+
+
+    // Progress line every interval while the crawl runs, 0 disables it
+    void startReporting(int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> logger.info(String.format(
+                "Progress: %d pages downloaded, %.1f pages/s, %d requests, %d retries, %d queued, %d waiting, " +
+                        "%d category and %d page tasks running",
+                getPagesDownloaded(), getPagesPerSecond(), getRequestCounts().values().stream()
+                        .mapToLong(Long::longValue).sum(), getRetries(), getQueuedTasks(), getWaitingTasks(),
+                getActiveCategoryWorkers(), getActivePageWorkers())),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+    }
+
+
+    void logSummary() {
+        StringBuilder summary = new StringBuilder("Crawl summary:");
+        summary.append(String.format("%n  elapsed: %d s", getElapsedSeconds()));
+        summary.append(String.format("%n  pages: %d downloaded (%.1f/s), %d unchanged, %d duplicates",
+                getPagesDownloaded(), getPagesPerSecond(), getPagesReused(), getPagesReferenced()));
+        summary.append(String.format("%n  downloaded: %.1f MB, retries: %d, failed requests: %d",
+                getBytesDownloaded() / 1024.0 / 1024.0, getRetries(), getFailedRequests()));
+        if (getCacheHits() + getCacheMisses() > 0) {
+            summary.append(String.format("%n  response cache: %d hits, %d misses", getCacheHits(),
+                    getCacheMisses()));
+        }
+        latencies.forEach((type, histogram) -> summary.append(String.format(
+                "%n  %s requests: %d, latency ms mean %.1f p50 %.0f p95 %.0f p99 %.0f max %.1f",
+                type.key(), histogram.getCount(), histogram.getMeanMs(), histogram.getPercentileMs(0.5),
+                histogram.getPercentileMs(0.95), histogram.getPercentileMs(0.99), histogram.getMaxMs())));
+        summary.append(String.format("%n  tasks in flight: %s; %s", describe("category", categoryWorkers),
+                describe("page", pageWorkers)));
+        getLevelCounts().forEach((level, count) -> summary.append(String.format("%n  level %s: %d pages",
+                level, count)));
+        logger.info(summary.toString());
+    }
+}
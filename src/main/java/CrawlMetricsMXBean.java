@@ -0,0 +1,62 @@
+import java.util.Map;
+
+
+/**
+ * Crawl metrics published over JMX as WikiCrawler:type=CrawlMetrics.
+ * JMX requires management interfaces to be public.
+ */
+public interface CrawlMetricsMXBean {
+    long getElapsedSeconds();
+
+    long getPagesDownloaded();
+
+    long getPagesReused();
+
+    long getPagesReferenced();
+
+    double getPagesPerSecond();
+
+    long getBytesDownloaded();
+
+    long getRetries();
+
+    long getFailedRequests();
+
+    // Responses taken from the response cache and requested because they were not there
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    // Request type -> number of requests
+    Map<String, Long> getRequestCounts();
+
+    // Request type and statistic, for example "pages.p95" -> milliseconds
+    Map<String, Double> getRequestLatencyMs();
+
+    // Tasks submitted to executors but not started yet
+    int getQueuedTasks();
+
+    // Tasks waiting for their level or for a free category worker
+    int getWaitingTasks();
+
+    int getActiveCategoryWorkers();
+
+    int getActivePageWorkers();
+
+    // Mean tasks in flight relative to the number of workers, NaN for virtual threads, which have no fixed number
+    double getCategoryWorkerUtilization();
+
+    double getPageWorkerUtilization();
+
+    // Tasks running at once, mean over the crawl and peak
+    double getMeanCategoryTasksInFlight();
+
+    double getMeanPageTasksInFlight();
+
+    int getPeakCategoryTasksInFlight();
+
+    int getPeakPageTasksInFlight();
+
+    // Global category number and level, for example 03/2 -> pages saved or being downloaded
+    Map<String, Integer> getLevelCounts();
+}
@@ -4,38 +4,146 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 class Crawler {
     private static final Logger logger = LogManager.getLogger(Crawler.class);
+    static final String journalFilename = "crawl.journal";
 
-    private static ConcurrentLinkedQueue<TaskParameters> queue;
-    private static ConcurrentHashMap<String, Integer> levelCounts;
-    private static ConcurrentHashMap<String, List<String>> currentProcessingLevels;
+    private static volatile LevelScheduler scheduler;
+    private static volatile boolean cancelled;
+    // Wiki name -> its API client with own rate limit, connection pool and circuit breaker
+    private static Map<String, ApiClient> apiClients;
+    private static CsvSink csvSink;
+    private static CrawlJournal journal;
+    private static PageIndex pageIndex;
+    private static ArticleStorage storage;
+    private static CrawlMetrics metrics;
+    private static FailedRequestLog failedRequestLog;
+    private static ResponseCache responseCache;
+    private static Path dataDirectoryPath;
+    private static PageBudgets budgets;
+    // Categories by their page keys and file ids by page keys, kept small for crawls of millions of pages.
+    // Global categories, whose page ids are not listed, are kept by their keys
+    private static LongHashSet visitedCategoryIds;
+    private static Set<String> visitedCategories;
+    private static PageClaims pageClaims;
+    private static AtomicInteger incompleteCategories;
 
 
-    static ConcurrentHashMap<String, Integer> getLevelCounts() {
-        return levelCounts;
+    static Path getDataDirectoryPath() {
+        return dataDirectoryPath;
     }
 
-    static void addLevelCount(String key, int value){
-        levelCounts.put(key, value);
+
+    static PageBudgets getBudgets() {
+        return budgets;
+    }
+
+    static LevelScheduler getScheduler() {
+        return scheduler;
+    }
+
+    static ApiClient getApiClient(Wiki wiki) {
+        return apiClients.get(wiki.getName());
+    }
+
+    static CsvSink getCsvSink() {
+        return csvSink;
+    }
+
+    static CrawlJournal getJournal() {
+        return journal;
+    }
+
+    static PageIndex getPageIndex() {
+        return pageIndex;
+    }
+
+    static ArticleStorage getStorage() {
+        return storage;
+    }
+
+    // Null if the response cache is off
+    static ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    static CrawlMetrics getMetrics() {
+        return metrics;
+    }
+
+    static FailedRequestLog getFailedRequestLog() {
+        return failedRequestLog;
+    }
+
+    // Returns false if the global category was already visited, categories are tracked by their wiki keys
+    static boolean markCategoryVisited(String categoryKey) {
+        return visitedCategories.add(categoryKey);
+    }
+
+    // Returns false if the subcategory was already visited, as a global category or by its page id
+    static boolean markSubcategoryVisited(Wiki wiki, String category, String pageId) {
+        if (visitedCategories.contains(wiki.key(category))) {
+            return false;
+        }
+        return pageId == null ? visitedCategories.add(wiki.key(category))
+                : visitedCategoryIds.add(wiki.pageKey(pageId));
+    }
+
+    // Whether the subcategory was already visited, nothing is marked
+    static boolean isSubcategoryVisited(Wiki wiki, String category, String pageId) {
+        return visitedCategories.contains(wiki.key(category))
+                || pageId != null && visitedCategoryIds.contains(wiki.pageKey(pageId));
+    }
+
+    // File id of the page if it was already claimed by a category, otherwise null
+    static String getPageFileId(long pageKey) {
+        return pageClaims.get(pageKey);
+    }
+
+    // Returns file id of the page if it was already claimed by another category, otherwise claims it
+    static String claimPage(long pageKey, String fileId) {
+        return pageClaims.claim(pageKey, fileId);
+    }
+
+    // Page which was claimed but could not be saved, another category may claim it
+    static void releasePage(long pageKey) {
+        pageClaims.release(pageKey);
+    }
+
+    // Whether the file of a claimed page is saved, references to it can be written then
+    static boolean isPageFileSaved(long pageKey) {
+        return pageClaims.isSaved(pageKey);
     }
 
-    static ConcurrentHashMap<String, List<String>> getCurrentProcessingLevels(){
-        return currentProcessingLevels;
+    static void pageFileSaved(long pageKey) {
+        pageClaims.markSaved(pageKey);
     }
 
-    static void addProcessingLevel(String key, List<String> value){
-        currentProcessingLevels.put(key, value);
+    // Category with failed requests, it is not journaled as completed
+    static void categoryNotCompleted() {
+        incompleteCategories.incrementAndGet();
     }
 
+    // Stops the crawl from another thread, e.g. when the lease of a distributed crawl task is lost and another
+    // process may resume it. Running tasks are interrupted and nothing more is written to the data directory
+    static void cancel() {
+        cancelled = true;
+        LevelScheduler currentScheduler = scheduler;
+        if (currentScheduler != null) {
+            currentScheduler.cancel();
+        }
+    }
 
-    static void addTaskToQueue(TaskParameters taskParameters){
-        queue.add(taskParameters);
+    static void addTaskToQueue(TaskParameters taskParameters) throws IOException {
+        journal.taskEnqueued(taskParameters);
+        scheduler.schedule(taskParameters);
     }
 
     static void deleteDataDirectory(Path dataDirectoryPath) throws IOException {
@@ -62,21 +170,40 @@ class Crawler {
 
 
 
-    static void run() throws InterruptedException {
-        queue = new ConcurrentLinkedQueue<>();
-        levelCounts = new ConcurrentHashMap<>();
-        currentProcessingLevels = new ConcurrentHashMap<>();
-        StringBuilder finalCsvData = new StringBuilder();
-        List<Future<String>> futures = new ArrayList<>();
+    // Crawl of all configured global categories in this process
+    static boolean run() throws InterruptedException {
+        return run(Main.getDataDirectoryPath(), Main.getGlobalCategories(), Main.isResume());
+    }
+
 
-        Path dataDirectoryPath = Main.getDataDirectoryPath();
+    // Crawl of global categories by their numbers in the config into given data directory.
+    // Returns false if the crawl could not start or some categories are not completed
+    static boolean run(Path dataDirectoryPath, Map<Integer, String> globalCategories, boolean resumeRequested)
+            throws InterruptedException {
+        Crawler.dataDirectoryPath = dataDirectoryPath;
+        cancelled = false;
+        scheduler = null;
+        budgets = new PageBudgets(Main.getMaxPages(), Main.maxPagesPerLevel, Main.getMaxPagesPerCategory());
+        visitedCategoryIds = new LongHashSet(Main.isOffHeapBookkeeping());
+        visitedCategories = ConcurrentHashMap.newKeySet();
+        pageClaims = new PageClaims(Main.isOffHeapBookkeeping());
+        incompleteCategories = new AtomicInteger();
+
+        Path journalPath = Paths.get(dataDirectoryPath.toString(), journalFilename);
+
+        boolean resume = resumeRequested && Files.exists(journalPath);
+        if (resumeRequested && !resume) {
+            logger.warn("No crawl journal found in " + dataDirectoryPath.toString() + ", starting new crawl");
+        }
 
         // Recursively delete all previously crawled data
-        try {
-            deleteDataDirectory(dataDirectoryPath);
-        } catch (IOException e) {
-            logger.error("Cannot delete directory " + dataDirectoryPath.toString());
-            logger.error(e);
+        if (!resume && !Main.isIncremental()) {
+            try {
+                deleteDataDirectory(dataDirectoryPath);
+            } catch (IOException e) {
+                logger.error("Cannot delete directory " + dataDirectoryPath.toString());
+                logger.error(e);
+            }
         }
 
         try {
@@ -87,71 +214,196 @@ class Crawler {
             logger.error(e);
         }
 
-        // Make queue with tasks properties
-        int i = 0;
-        for (String category: Main.getCategories()){
-            Path path = Paths.get(dataDirectoryPath.toString(), String.format("%02d", i) + "_" + category);
-            category = category.trim();
-            category = "Категория:" + category;
-            queue.add(new TaskParameters(category, category, 0, path,
-                    String.format("%02d", i) + "_"));
-            i++;
-        }
-
-        // Create executor
-        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(Main.getParallelTaskCount());
-
-        i = 0;
-        do {
-            // If queue is empty but there are running tasks then wait
-            if (queue.size() == 0){
-                Thread.sleep(Main.getThreadSleepMs());
-            } else {
-                //Get data from queue
-                TaskParameters taskParameteres = queue.poll();
-                String keyNew = taskParameteres.getGlobalCategory() + taskParameteres.getLevel();
-                String keyPrev = taskParameteres.getGlobalCategory() + (taskParameteres.getLevel()-1);
-
-                // If there are running tasks in this category at previous level then return data to queue and wait
-                if (currentProcessingLevels.containsKey(keyPrev) && !currentProcessingLevels.get(keyPrev).isEmpty()
-                        && taskParameteres.getLevel() != 0) {
-                    queue.add(taskParameteres);
-                    Thread.sleep(Main.getThreadSleepMs());
-                } else {
-                    // Run task and collect returned csv data
-                    List<String> currentRunningCats = currentProcessingLevels.getOrDefault(keyNew, new ArrayList<>());
-                    currentRunningCats.add(taskParameteres.getCurrentCategory());
-                    currentProcessingLevels.put(keyNew, currentRunningCats);
-                    Future<String> csv_data = executor.submit(new ProcessCategory(taskParameteres));
-                    futures.add(csv_data);
-                }
+        try {
+            csvSink = new CsvSink(Paths.get(dataDirectoryPath.toString(), Main.getCsvFilename()));
+        } catch (IOException e) {
+            logger.error("Cannot open csv file");
+            logger.error(e);
+            return false;
+        }
+
+        try {
+            failedRequestLog = new FailedRequestLog(Paths.get(dataDirectoryPath.toString(),
+                    FailedRequestLog.filename));
+        } catch (IOException e) {
+            logger.error("Cannot open failed request log");
+            logger.error(e);
+            return false;
+        }
+
+        responseCache = null;
+        if (Main.isUseResponseCache()) {
+            try {
+                responseCache = new ResponseCache(Main.getResponseCacheDirectoryPath(), Main.getResponseCacheTtlMs(),
+                        Main.getResponseCacheMaxBytes(), Main.getResponseCacheMemoryBytes());
+            } catch (IOException e) {
+                logger.error("Cannot open response cache " + Main.getResponseCacheDirectoryPath().toString() +
+                        ", crawling without it");
+                logger.error(e);
             }
-            i++;
-        } while (!queue.isEmpty() || executor.getActiveCount() != 0);
+        }
 
-        logger.info("Tasks finished");
+        try {
+            storage = Main.isUsePackStorage()
+                    ? new PackArticleStorage(dataDirectoryPath, Main.getPackSegmentBytes(), resume)
+                    : new FileArticleStorage(dataDirectoryPath);
+        } catch (IOException e) {
+            logger.error("Cannot open article storage");
+            logger.error(e);
+            return false;
+        }
+
+        try {
+            pageIndex = new PageIndex(dataDirectoryPath, Main.isIncremental());
+            journal = new CrawlJournal(journalPath, resume, csvSink, pageIndex, pageClaims, visitedCategoryIds);
+            budgets.restore(journal.getLevelCounts());
+            visitedCategories.addAll(journal.getVisitedCategories());
+        } catch (IOException e) {
+            logger.error("Cannot open crawl journal or page index");
+            logger.error(e);
+            return false;
+        }
+
+        // Create executor and scheduler
+        ExecutorService categoryExecutor = Main.isUseVirtualThreads()
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("crawler-", 0).factory())
+                : Executors.newFixedThreadPool(Main.getParallelTaskCount());
+        ExecutorService pageExecutor = Main.isUseVirtualThreads()
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("fetcher-", 0).factory())
+                : Executors.newFixedThreadPool(Main.getPageFetcherCount());
+        // Category tasks are limited by the scheduler in both modes, page batches in virtual threads are not
+        metrics = new CrawlMetrics(Main.getParallelTaskCount(),
+                Main.isUseVirtualThreads() ? 0 : Main.getPageFetcherCount());
+        metrics.register();
+        metrics.startReporting(Main.getMetricsLogIntervalSeconds());
+        scheduler = new LevelScheduler(categoryExecutor, pageExecutor, Main.getParallelTaskCount(), metrics,
+                ProcessCategory::new);
+        if (cancelled) {
+            scheduler.cancel();
+        }
+        apiClients = new LinkedHashMap<>();
+        for (Wiki wiki : Main.getWikis()) {
+            apiClients.put(wiki.getName(), new ApiClient(wiki.getHttpMaxConnections(),
+                    new RateLimiter(wiki.getRequestsPerSecond(), wiki.getRequestBurst()),
+                    new RetryPolicy(Main.getRetryMaxAttempts(), Main.getRetryBaseDelayMs(),
+                            Main.getRetryMaxDelayMs()),
+                    new CircuitBreaker(Main.getCircuitBreakerFailures(), Main.getCircuitBreakerPauseSeconds(),
+                            Main.getCircuitBreakerMaxPauseSeconds()),
+                    metrics, failedRequestLog));
+        }
+
+        if (resume) {
+            // Continue with tasks which were not completed before
+            logger.info("Resuming crawl from " + journalPath.toString());
+            for (TaskParameters taskParameters : journal.getPendingTasks()) {
+                scheduler.schedule(taskParameters);
+            }
+        } else {
+            // Schedule tasks for global categories
+            for (Map.Entry<Integer, String> globalCategory : globalCategories.entrySet()) {
+                int i = globalCategory.getKey();
+                Wiki wiki = Main.getWiki(i);
+                String category = globalCategory.getValue();
+                if (wiki == null) {
+                    // Task of a distributed crawl published with another config
+                    logger.error("No wiki configured for global category " + i + ": " + category);
+                    incompleteCategories.incrementAndGet();
+                    continue;
+                }
+                Path path = Paths.get(dataDirectoryPath.toString(), String.format("%02d", i) + "_" + category);
+                category = category.trim();
+                category = wiki.categoryTitle(category);
+                if (!markCategoryVisited(wiki.key(category))) {
+                    logger.warn("Category is listed twice: " + wiki.key(category));
+                    continue;
+                }
+                try {
+                    addTaskToQueue(new TaskParameters(wiki, category, category, 0, path,
+                            String.format("%02d", i) + "_"));
+                } catch (IOException e) {
+                    logger.error("Cannot write crawl journal");
+                    logger.error(e);
+                    incompleteCategories.incrementAndGet();
+                }
+            }
+        }
 
-        // Add header
-        finalCsvData.append("File id,Название статьи,URL,Категория,Уровень,Размер статьи\n");
-        for (Future<String> future: futures){
+        scheduler.start();
+        scheduler.awaitCompletion();
+        if (cancelled) {
+            // Tasks still running fail on closed files instead of writing to data of another process
+            logger.error("Crawl cancelled, nothing more is written to " + dataDirectoryPath.toString());
             try {
-                finalCsvData.append(future.get());
-            } catch (InterruptedException | ExecutionException e) {
+                journal.close();
+                storage.close();
+                csvSink.abandon();
+            } catch (IOException e) {
                 logger.error(e);
             }
         }
+        categoryExecutor.shutdown();
+        pageExecutor.shutdown();
 
+        try {
+            // Also aborts requests of cancelled tasks
+            for (ApiClient apiClient : apiClients.values()) {
+                apiClient.close();
+            }
+            failedRequestLog.close();
+        } catch (IOException e) {
+            logger.error(e);
+        }
+
+        if (cancelled) {
+            // Next crawl in this process must not share bookkeeping with tasks of this one
+            while (!categoryExecutor.awaitTermination(10, TimeUnit.SECONDS) ||
+                    !pageExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Waiting for cancelled tasks to stop");
+            }
+        }
+
+        logger.info("Tasks finished");
+        metrics.stopReporting();
+        metrics.logSummary();
+        metrics.unregister();
+        if (cancelled) {
+            return false;
+        }
+        if (metrics.getFailedRequests() > 0) {
+            logger.warn(metrics.getFailedRequests() + " requests failed, see " + FailedRequestLog.filename +
+                    ". Run again with resume = true to repeat categories which are not completed");
+        }
 
-        byte[] csvBytesToWrite = finalCsvData.toString().getBytes();
         try {
-            Files.write(Paths.get(dataDirectoryPath.toString(), Main.getCsvFilename()), csvBytesToWrite);
+            storage.close();
+        } catch (IOException e) {
+            logger.error("Cannot close article storage");
+            logger.error(e);
+        }
+
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.error(e);
+        }
+
+        try {
+            csvSink.close();
         } catch (IOException e) {
             logger.error("Cannot write csv data");
             logger.error(e);
         }
 
-        logger.info("Csv file written to" + Paths.get(dataDirectoryPath.toString(), Main.getCsvFilename()).toString());
+        try {
+            pageIndex.write();
+            if (Main.isIncremental()) {
+                pageIndex.deleteStaleFiles(storage);
+            }
+        } catch (IOException e) {
+            logger.error("Cannot update page index");
+            logger.error(e);
+        }
 
-        executor.shutdown();
+        return incompleteCategories.get() == 0;
     }
 }
@@ -0,0 +1,183 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Csv index shared by all workers.
+ * Rows are appended to a .part file as soon as pages are saved, so they are on disk even if the crawl dies.
+ * On close the rows are sorted by file id in chunks and merged into the final csv file.
+ */
+class CsvSink implements Closeable {
+    private static final Logger logger = LogManager.getLogger(CsvSink.class);
+
+    static final String header = "File id,Название статьи,URL,Категория,Уровень,Размер статьи,Дубликат файла,Файл статьи";
+    private static final int defaultMaxRowsInMemory = 100000;
+
+    private final Path csvPath;
+    private final int maxRowsInMemory;
+    private final Path partPath;
+    private final BufferedWriter writer;
+    // Not a monitor, so virtual threads waiting for the writer do not pin their carrier threads
+    private final ReentrantLock lock = new ReentrantLock();
+
+
+    CsvSink(Path csvPath) throws IOException {
+        this(csvPath, defaultMaxRowsInMemory);
+    }
+
+    // Rows sorted in memory at once when the csv is written
+    CsvSink(Path csvPath, int maxRowsInMemory) throws IOException {
+        this.csvPath = csvPath;
+        this.maxRowsInMemory = maxRowsInMemory;
+        this.partPath = Paths.get(csvPath.toString() + ".part");
+        this.writer = Files.newBufferedWriter(partPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+
+    void addRow(String row) throws IOException {
+        lock.lock();
+        try {
+            writer.write(row);
+            writer.newLine();
+            writer.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void addRows(List<String> rows) throws IOException {
+        lock.lock();
+        try {
+            for (String row : rows) {
+                writer.write(row);
+                writer.newLine();
+            }
+            writer.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Rows start with quoted unique file id, so ordering of whole rows is ordering by file id
+    private List<Path> writeSortedChunks() throws IOException {
+        List<Path> chunkPaths = new ArrayList<>();
+        List<String> rows = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(partPath, StandardCharsets.UTF_8)) {
+            String row;
+            while ((row = reader.readLine()) != null) {
+                rows.add(row);
+                if (rows.size() == maxRowsInMemory) {
+                    chunkPaths.add(writeChunk(rows, chunkPaths.size()));
+                    rows.clear();
+                }
+            }
+        }
+        if (!rows.isEmpty()) {
+            chunkPaths.add(writeChunk(rows, chunkPaths.size()));
+        }
+        return chunkPaths;
+    }
+
+    private Path writeChunk(List<String> rows, int chunkNumber) throws IOException {
+        rows.sort(null);
+        Path chunkPath = Paths.get(partPath.toString() + "." + chunkNumber);
+        Files.write(chunkPath, rows, StandardCharsets.UTF_8);
+        return chunkPath;
+    }
+
+
+    private static class ChunkHead implements Comparable<ChunkHead> {
+        private final String row;
+        private final BufferedReader reader;
+
+        ChunkHead(String row, BufferedReader reader) {
+            this.row = row;
+            this.reader = reader;
+        }
+
+        @Override
+        public int compareTo(ChunkHead other) {
+            return row.compareTo(other.row);
+        }
+    }
+
+
+    private void mergeChunks(List<Path> chunkPaths) throws IOException {
+        List<BufferedReader> readers = new ArrayList<>();
+        PriorityQueue<ChunkHead> heads = new PriorityQueue<>();
+
+        try (BufferedWriter csvWriter = Files.newBufferedWriter(csvPath, StandardCharsets.UTF_8)) {
+            for (Path chunkPath : chunkPaths) {
+                BufferedReader reader = Files.newBufferedReader(chunkPath, StandardCharsets.UTF_8);
+                readers.add(reader);
+                String row = reader.readLine();
+                if (row != null) {
+                    heads.add(new ChunkHead(row, reader));
+                }
+            }
+
+            csvWriter.write(header);
+            csvWriter.newLine();
+            while (!heads.isEmpty()) {
+                ChunkHead head = heads.poll();
+                csvWriter.write(head.row);
+                csvWriter.newLine();
+                String row = head.reader.readLine();
+                if (row != null) {
+                    heads.add(new ChunkHead(row, head.reader));
+                }
+            }
+        } finally {
+            for (BufferedReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            writer.close();
+        } finally {
+            lock.unlock();
+        }
+
+        List<Path> chunkPaths = writeSortedChunks();
+        mergeChunks(chunkPaths);
+        for (Path chunkPath : chunkPaths) {
+            Files.delete(chunkPath);
+        }
+        Files.delete(partPath);
+
+        logger.info("Csv file written to " + csvPath.toString());
+    }
+
+    // Stops appending rows without writing the csv file, the part file is rebuilt from the journal on resume
+    void abandon() throws IOException {
+        lock.lock();
+        try {
+            writer.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Tab separated log of retried and failed API requests: time, RETRY or FAILED, request type, attempt,
+ * reason and url. Categories with failed requests are not journaled as completed,
+ * so a crawl run again with resume = true repeats them.
+ */
+class FailedRequestLog implements Closeable {
+    private static final Logger logger = LogManager.getLogger(FailedRequestLog.class);
+
+    static final String filename = "failed_requests.tsv";
+
+    private final BufferedWriter writer;
+    // Not a monitor, so virtual threads waiting for the writer do not pin their carrier threads
+    private final ReentrantLock lock = new ReentrantLock();
+
+
+    FailedRequestLog(Path path) throws IOException {
+        writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+
+    private void append(String outcome, CrawlMetrics.RequestType requestType, int attempt, String reason,
+                        String url) {
+        lock.lock();
+        try {
+            writer.write(String.join("\t", Instant.now().toString(), outcome, requestType.key(),
+                    String.valueOf(attempt), reason.replaceAll("[\t\r\n]", " "), url));
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            // Losing a log record must not fail the request itself
+            logger.warn("Cannot write failed request log record: {} {} {}", outcome, url, e.toString());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void retried(CrawlMetrics.RequestType requestType, int attempt, String reason, String url) {
+        append("RETRY", requestType, attempt, reason, url);
+    }
+
+    void failed(CrawlMetrics.RequestType requestType, int attempt, String reason, String url) {
+        append("FAILED", requestType, attempt, reason, url);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            writer.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
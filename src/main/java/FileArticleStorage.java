@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+
+/**
+ * Every article in its own text file in the directory of its category.
+ * Text is written to a .part file which is renamed when the title is known.
+ */
+class FileArticleStorage implements ArticleStorage {
+    private final Path dataDirectoryPath;
+    // No article is written after close, even by page batches of a cancelled crawl
+    private volatile boolean closed;
+
+
+    FileArticleStorage(Path dataDirectoryPath) {
+        this.dataDirectoryPath = dataDirectoryPath;
+    }
+
+
+    private static Path makePageFilePath(Path directory, String fileId, String title) {
+        return Paths.get(directory.toString(), fileId + "_" + title.replaceAll("[\\\\/]", " ") + ".txt");
+    }
+
+
+    @Override
+    public PendingArticle create(Path directory, String fileId) throws IOException {
+        if (closed) {
+            throw new IOException("Article storage is closed");
+        }
+        Path partPath = Paths.get(directory.toString(), fileId + ".part");
+        Writer writer = Files.newBufferedWriter(partPath, StandardCharsets.UTF_8);
+
+        return new PendingArticle() {
+            @Override
+            public Writer getWriter() {
+                return writer;
+            }
+
+            @Override
+            public String commit(String title) throws IOException {
+                Path file = makePageFilePath(directory, fileId, title);
+                Files.move(partPath, file, StandardCopyOption.REPLACE_EXISTING);
+                return dataDirectoryPath.relativize(file).toString();
+            }
+
+            @Override
+            public void discard() throws IOException {
+                Files.deleteIfExists(partPath);
+            }
+        };
+    }
+
+
+    @Override
+    public String reuse(String previousLocation, Path directory, String fileId, String title) throws IOException {
+        Path previousFile = Paths.get(dataDirectoryPath.toString(), previousLocation);
+        if (!Files.exists(previousFile)) {
+            return null;
+        }
+
+        Path file = makePageFilePath(directory, fileId, title);
+        if (!previousFile.equals(file)) {
+            Files.deleteIfExists(file);
+            try {
+                Files.createLink(file, previousFile);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(previousFile, file);
+            }
+        }
+        return dataDirectoryPath.relativize(file).toString();
+    }
+
+
+    @Override
+    public boolean delete(String location) throws IOException {
+        return Files.deleteIfExists(Paths.get(dataDirectoryPath.toString(), location));
+    }
+
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
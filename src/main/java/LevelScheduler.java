@@ -0,0 +1,387 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+
+/**
+ * Runs category tasks level by level: a level of a global category is released only when every task of its previous
+ * level has finished, levels of different global categories and wikis go on independently.
+ * Released tasks form the frontier: at most the given number of category tasks are listed at once,
+ * the next one is taken from the frontier by level, then by estimated size, larger first, then in order of arrival.
+ * Categories of a level claim their pages in order of their filename prefixes, each as soon as it and all categories
+ * before it are listed, so a page listed by several categories of a global category goes to the lowest level
+ * and then to the lowest prefix whatever the timing. Page batches run on their own executor as soon as they are
+ * claimed and belong to the level of their category.
+ * When all pages of a level are downloaded, its categories reference pages saved by others in the same order and take
+ * over pages whose owners could not save them. References to pages still downloaded by another global category wait
+ * for its page batches. Then the categories are completed and the next level is released.
+ * Each step is started by the last finishing task of the previous one, so neither the main thread nor the workers poll.
+ * A cancelled scheduler interrupts running tasks, drops waiting ones and lets the crawl finish at once.
+ */
+class LevelScheduler {
+    private static final Logger logger = LogManager.getLogger(LevelScheduler.class);
+
+    /**
+     * Category of a level. Listings run in parallel and return the number of listed pages, the other steps are called
+     * for the categories of a level one by one in order of their prefixes and handle failures themselves.
+     */
+    interface CategoryTask extends Callable<Integer> {
+        // Claims listed pages, schedules their page batches and enqueues subcategories
+        void claimPages();
+
+        // Writes references to pages saved by their owners and takes over pages their owners could not save
+        void referencePages();
+
+        // References waiting for pages which another global category is still downloading
+        boolean hasPendingReferences();
+
+        // Journals the category as completed, or counts it as not completed
+        void complete();
+    }
+
+
+    private enum Phase { CLAIMS, REFERENCES, WAITING, COMPLETION }
+
+    // Released level of a global category
+    private static class Level {
+        private final long key;
+        private final int globalCategory;
+        private final int number;
+        // In order of prefixes, listed in parallel and claimed in this order
+        private final List<TaskParameters> tasks;
+        private final List<CategoryTask> categories = new ArrayList<>();
+        private final boolean[] listed;
+        private int claimedCount;
+        private boolean claiming;
+        private Phase phase = Phase.CLAIMS;
+        // Categories not claimed yet, page batches and the running step
+        private int unfinishedTasks;
+        // Page batches of the level, and page batches of the crawl finished, since the last reference step started
+        private int stepBatches;
+        private long finishedBatchesAtStep;
+        private boolean pendingReferences;
+
+        Level(int globalCategory, int number, List<TaskParameters> tasks) {
+            this.key = PageBudgets.levelKey(globalCategory, number);
+            this.globalCategory = globalCategory;
+            this.number = number;
+            this.tasks = tasks;
+            this.listed = new boolean[tasks.size()];
+        }
+    }
+
+    private static class FrontierEntry {
+        private final Level level;
+        private final int rank;
+        private final long sequence;
+
+        FrontierEntry(Level level, int rank, long sequence) {
+            this.level = level;
+            this.rank = rank;
+            this.sequence = sequence;
+        }
+
+        TaskParameters getTask() {
+            return level.tasks.get(rank);
+        }
+    }
+
+
+    private final ExecutorService categoryExecutor;
+    private final ExecutorService pageExecutor;
+    private final int maxRunningCategoryTasks;
+    private final CrawlMetrics metrics;
+    private final Function<TaskParameters, CategoryTask> categoryFactory;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    // Guarded by this. Global category -> level -> tasks not released yet
+    private final HashMap<Integer, TreeMap<Integer, List<TaskParameters>>> waitingTasks = new HashMap<>();
+    private final HashMap<Long, Level> levels = new HashMap<>();
+    // Levels whose references wait for page batches of other global categories
+    private final List<Level> waitingLevels = new ArrayList<>();
+    private final PriorityQueue<FrontierEntry> frontier = new PriorityQueue<>(
+            Comparator.comparingInt((FrontierEntry entry) -> entry.level.number)
+                    .thenComparing(entry -> entry.getTask().getEstimatedPages(), Comparator.reverseOrder())
+                    .thenComparingLong(entry -> entry.sequence));
+    private long frontierSequence;
+    private int runningCategoryTasks;
+    private long finishedBatches;
+    private boolean started;
+    private boolean cancelled;
+
+
+    LevelScheduler(ExecutorService categoryExecutor, ExecutorService pageExecutor, int maxRunningCategoryTasks,
+                   CrawlMetrics metrics, Function<TaskParameters, CategoryTask> categoryFactory) {
+        this.categoryExecutor = categoryExecutor;
+        this.pageExecutor = pageExecutor;
+        this.maxRunningCategoryTasks = Math.max(1, maxRunningCategoryTasks);
+        this.metrics = metrics;
+        this.categoryFactory = categoryFactory;
+    }
+
+
+    // Task waits until its level is released, subcategories are enqueued for the level after the running one
+    synchronized void schedule(TaskParameters taskParameters) {
+        if (cancelled) {
+            return;
+        }
+        waitingTasks.computeIfAbsent(taskParameters.getGlobalCategoryNumber(), k -> new TreeMap<>())
+                .computeIfAbsent(taskParameters.getLevel(), k -> new ArrayList<>()).add(taskParameters);
+    }
+
+
+    // Releases the lowest level of every global category once the initial or resumed tasks are scheduled
+    synchronized void start() {
+        if (cancelled || started) {
+            return;
+        }
+        started = true;
+        for (int globalCategory : new ArrayList<>(waitingTasks.keySet())) {
+            releaseNextLevel(globalCategory);
+        }
+        finishIfDone();
+    }
+
+
+    // Page batch of a category being claimed or referenced, its level cannot be finished before it
+    synchronized void schedulePages(TaskParameters taskParameters, Callable<Integer> pageBatch) {
+        if (cancelled) {
+            return;
+        }
+        Level level = levels.get(taskParameters.getLevelKey());
+        level.unfinishedTasks++;
+        level.stepBatches++;
+
+        metrics.getPageWorkers().taskQueued();
+        pageExecutor.execute(() -> {
+            long startNanos = metrics.getPageWorkers().taskStarted();
+            try {
+                int pagesCount = pageBatch.call();
+                logger.debug("Page batch finished: {} pages: {}", taskParameters.getCurrentCategory(), pagesCount);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Page batch interrupted: {}", taskParameters.getCurrentCategory());
+            } catch (Exception e) {
+                logger.error("Page batch failed: {}", taskParameters.getCurrentCategory());
+                logger.error(e);
+            } finally {
+                metrics.getPageWorkers().taskFinished(startNanos);
+                batchFinished(level);
+            }
+        });
+    }
+
+
+    // Guarded by this
+    private void releaseNextLevel(int globalCategory) {
+        TreeMap<Integer, List<TaskParameters>> globalCategoryTasks = waitingTasks.get(globalCategory);
+        if (globalCategoryTasks == null) {
+            return;
+        }
+        Map.Entry<Integer, List<TaskParameters>> next = globalCategoryTasks.pollFirstEntry();
+        if (globalCategoryTasks.isEmpty()) {
+            waitingTasks.remove(globalCategory);
+        }
+
+        List<TaskParameters> tasks = new ArrayList<>(next.getValue());
+        tasks.sort(Comparator.comparing(TaskParameters::getPrefixForPageFilename));
+        Level level = new Level(globalCategory, next.getKey(), tasks);
+        levels.put(level.key, level);
+        logger.debug("Level released: {} categories: {}", PageBudgets.levelName(level.key), tasks.size());
+
+        level.unfinishedTasks = tasks.size();
+        for (int rank = 0; rank < tasks.size(); rank++) {
+            level.categories.add(categoryFactory.apply(tasks.get(rank)));
+            frontier.add(new FrontierEntry(level, rank, frontierSequence++));
+        }
+        submitFromFrontier();
+    }
+
+    // Guarded by this
+    private void submitFromFrontier() {
+        while (!cancelled && runningCategoryTasks < maxRunningCategoryTasks && !frontier.isEmpty()) {
+            runningCategoryTasks++;
+            submit(frontier.poll());
+        }
+    }
+
+
+    private void submit(FrontierEntry entry) {
+        TaskParameters taskParameters = entry.getTask();
+        CategoryTask category = entry.level.categories.get(entry.rank);
+        metrics.getCategoryWorkers().taskQueued();
+        categoryExecutor.execute(() -> {
+            long startNanos = metrics.getCategoryWorkers().taskStarted();
+            try {
+                int listedCount = category.call();
+                logger.debug("Category listed: {} pages: {}", taskParameters.getCurrentCategory(), listedCount);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Task interrupted: {}", taskParameters.getCurrentCategory());
+            } catch (Exception e) {
+                logger.error("Task failed: {}", taskParameters.getCurrentCategory());
+                logger.error(e);
+            } finally {
+                synchronized (this) {
+                    entry.level.listed[entry.rank] = true;
+                }
+                claimListed(entry.level);
+                metrics.getCategoryWorkers().taskFinished(startNanos);
+                listingFinished();
+            }
+        });
+    }
+
+    private synchronized void listingFinished() {
+        runningCategoryTasks--;
+        submitFromFrontier();
+    }
+
+
+    // Categories are claimed one at a time in order of prefixes, by the listing task which finds the next one listed
+    private void claimListed(Level level) {
+        while (true) {
+            CategoryTask category;
+            synchronized (this) {
+                if (cancelled || level.claiming || level.claimedCount == level.tasks.size()
+                        || !level.listed[level.claimedCount]) {
+                    return;
+                }
+                level.claiming = true;
+                category = level.categories.get(level.claimedCount);
+            }
+            try {
+                category.claimPages();
+            } catch (RuntimeException e) {
+                logger.error("Claiming failed: {}", level.tasks.get(level.claimedCount).getCurrentCategory());
+                logger.error(e);
+            } finally {
+                synchronized (this) {
+                    level.claiming = false;
+                    level.claimedCount++;
+                    levelTaskFinished(level);
+                }
+            }
+        }
+    }
+
+
+    private synchronized void batchFinished(Level level) {
+        finishedBatches++;
+        levelTaskFinished(level);
+        if (!cancelled && !waitingLevels.isEmpty()) {
+            List<Level> woken = new ArrayList<>(waitingLevels);
+            waitingLevels.clear();
+            woken.forEach(this::runReferenceStep);
+        }
+    }
+
+    private synchronized void levelTaskFinished(Level level) {
+        level.unfinishedTasks--;
+        if (level.unfinishedTasks > 0 || cancelled) {
+            return;
+        }
+
+        if (level.phase == Phase.CLAIMS) {
+            runReferenceStep(level);
+        } else if (level.phase == Phase.REFERENCES) {
+            // Pages taken over are saved or given back by now, owners of pending pages may have finished meanwhile
+            if (level.stepBatches > 0 || level.pendingReferences && finishedBatches != level.finishedBatchesAtStep) {
+                runReferenceStep(level);
+            } else if (level.pendingReferences) {
+                level.phase = Phase.WAITING;
+                waitingLevels.add(level);
+            } else {
+                level.phase = Phase.COMPLETION;
+                runStep(level, () -> level.categories.forEach(CategoryTask::complete));
+            }
+        } else if (level.phase == Phase.COMPLETION) {
+            levels.remove(level.key);
+            logger.debug("Level finished: {}", PageBudgets.levelName(level.key));
+            releaseNextLevel(level.globalCategory);
+            finishIfDone();
+        }
+    }
+
+
+    // Guarded by this
+    private void runReferenceStep(Level level) {
+        level.phase = Phase.REFERENCES;
+        level.stepBatches = 0;
+        level.finishedBatchesAtStep = finishedBatches;
+        runStep(level, () -> {
+            boolean pendingReferences = false;
+            for (CategoryTask category : level.categories) {
+                category.referencePages();
+                pendingReferences |= category.hasPendingReferences();
+            }
+            synchronized (this) {
+                level.pendingReferences = pendingReferences;
+            }
+        });
+    }
+
+    // Guarded by this. Step goes through the categories of the level in a category worker
+    private void runStep(Level level, Runnable step) {
+        level.unfinishedTasks++;
+        categoryExecutor.execute(() -> {
+            try {
+                step.run();
+            } catch (RuntimeException e) {
+                logger.error("Level step failed: {}", PageBudgets.levelName(level.key));
+                logger.error(e);
+            } finally {
+                levelTaskFinished(level);
+            }
+        });
+    }
+
+    // Guarded by this
+    private void finishIfDone() {
+        if (levels.isEmpty() && waitingTasks.isEmpty()) {
+            finished.countDown();
+        }
+    }
+
+
+    // Tasks of levels not released yet and released tasks waiting in the frontier
+    synchronized int getWaitingTaskCount() {
+        int count = frontier.size();
+        for (TreeMap<Integer, List<TaskParameters>> globalCategoryTasks : waitingTasks.values()) {
+            for (List<TaskParameters> tasks : globalCategoryTasks.values()) {
+                count += tasks.size();
+            }
+        }
+        return count;
+    }
+
+
+    synchronized void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        frontier.clear();
+        waitingTasks.clear();
+        waitingLevels.clear();
+        categoryExecutor.shutdownNow();
+        pageExecutor.shutdownNow();
+        finished.countDown();
+    }
+
+
+    void awaitCompletion() throws InterruptedException {
+        finished.await();
+    }
+}
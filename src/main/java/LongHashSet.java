@@ -0,0 +1,127 @@
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Set of longs with open addressing and linear probing, without boxing or entry objects: about 16 to 24 bytes
+ * per element. The table is kept on the Java heap or, for very large crawls, in direct memory outside of it,
+ * so it does not add to garbage collection work. Shared by crawler threads, operations take a lock
+ * for a few probes only.
+ */
+class LongHashSet {
+    private static final int defaultInitialCapacity = 1024;
+    // Direct buffers are limited to 2 GB
+    private static final int maxCapacity = 1 << 28;
+
+    private final boolean offHeap;
+    // Not a monitor, so virtual threads waiting for the set do not pin their carrier threads
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guarded by lock. Zero marks free slots, so zero itself is kept aside
+    private LongBuffer table;
+    private int size;
+    private boolean containsZero;
+
+
+    LongHashSet(boolean offHeap) {
+        this(offHeap, defaultInitialCapacity);
+    }
+
+    // Initial capacity is a power of two, for many small sets
+    LongHashSet(boolean offHeap, int initialCapacity) {
+        if (Integer.bitCount(initialCapacity) != 1) {
+            throw new IllegalArgumentException("Capacity is not a power of two: " + initialCapacity);
+        }
+        this.offHeap = offHeap;
+        this.table = allocate(initialCapacity, offHeap);
+    }
+
+
+    static LongBuffer allocate(int length, boolean offHeap) {
+        return offHeap ? ByteBuffer.allocateDirect(length * Long.BYTES).asLongBuffer() : LongBuffer.allocate(length);
+    }
+
+    // Final step of MurmurHash3, spreads keys like sequential page ids over the table
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+
+    // Slot of the key or of the free slot where it belongs
+    private static int findSlot(LongBuffer table, long key) {
+        int mask = table.capacity() - 1;
+        int slot = (int) mix(key) & mask;
+        while (true) {
+            long current = table.get(slot);
+            if (current == 0 || current == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // Table is doubled when it is two thirds full
+    private void growIfFull() {
+        if ((size + 1) * 3L < table.capacity() * 2L) {
+            return;
+        }
+        if (table.capacity() >= maxCapacity) {
+            throw new IllegalStateException("Hash set is full: " + size + " elements");
+        }
+        LongBuffer grown = allocate(table.capacity() * 2, offHeap);
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            long key = table.get(slot);
+            if (key != 0) {
+                grown.put(findSlot(grown, key), key);
+            }
+        }
+        table = grown;
+    }
+
+
+    // Returns false if the key was already in the set
+    boolean add(long key) {
+        lock.lock();
+        try {
+            if (key == 0) {
+                boolean added = !containsZero;
+                containsZero = true;
+                return added;
+            }
+            growIfFull();
+            int slot = findSlot(table, key);
+            if (table.get(slot) == key) {
+                return false;
+            }
+            table.put(slot, key);
+            size++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean contains(long key) {
+        lock.lock();
+        try {
+            return key == 0 ? containsZero : table.get(findSlot(table, key)) == key;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size + (containsZero ? 1 : 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
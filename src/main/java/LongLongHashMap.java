@@ -0,0 +1,179 @@
+import java.nio.LongBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Map of longs to non-negative longs with open addressing, keys and values interleaved in one table
+ * on the Java heap or in direct memory, like LongHashSet. About 32 to 48 bytes per entry.
+ */
+class LongLongHashMap {
+    private static final int initialCapacity = 1024;
+    // Two longs per slot in a direct buffer limited to 2 GB
+    private static final int maxCapacity = 1 << 27;
+
+    // Returned for absent keys
+    static final long noValue = -1;
+
+    private final boolean offHeap;
+    // Not a monitor, so virtual threads waiting for the map do not pin their carrier threads
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guarded by lock. Zero key marks free slots, so value of zero key is kept aside
+    private LongBuffer table;
+    private int capacity = initialCapacity;
+    private int size;
+    private long zeroKeyValue = noValue;
+
+
+    LongLongHashMap(boolean offHeap) {
+        this.offHeap = offHeap;
+        this.table = LongHashSet.allocate(capacity * 2, offHeap);
+    }
+
+
+    private static int findSlot(LongBuffer table, int capacity, long key) {
+        int mask = capacity - 1;
+        int slot = (int) LongHashSet.mix(key) & mask;
+        while (true) {
+            long current = table.get(slot * 2);
+            if (current == 0 || current == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void growIfFull() {
+        if ((size + 1) * 3L < capacity * 2L) {
+            return;
+        }
+        if (capacity >= maxCapacity) {
+            throw new IllegalStateException("Hash map is full: " + size + " entries");
+        }
+        int grownCapacity = capacity * 2;
+        LongBuffer grown = LongHashSet.allocate(grownCapacity * 2, offHeap);
+        for (int slot = 0; slot < capacity; slot++) {
+            long key = table.get(slot * 2);
+            if (key != 0) {
+                int grownSlot = findSlot(grown, grownCapacity, key);
+                grown.put(grownSlot * 2, key);
+                grown.put(grownSlot * 2 + 1, table.get(slot * 2 + 1));
+            }
+        }
+        table = grown;
+        capacity = grownCapacity;
+    }
+
+
+    long get(long key) {
+        lock.lock();
+        try {
+            if (key == 0) {
+                return zeroKeyValue;
+            }
+            int slot = findSlot(table, capacity, key);
+            return table.get(slot * 2) == key ? table.get(slot * 2 + 1) : noValue;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns value already mapped to the key, or noValue if the given value was put
+    long putIfAbsent(long key, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        lock.lock();
+        try {
+            if (key == 0) {
+                long previous = zeroKeyValue;
+                if (previous == noValue) {
+                    zeroKeyValue = value;
+                }
+                return previous;
+            }
+            growIfFull();
+            int slot = findSlot(table, capacity, key);
+            if (table.get(slot * 2) == key) {
+                return table.get(slot * 2 + 1);
+            }
+            table.put(slot * 2, key);
+            table.put(slot * 2 + 1, value);
+            size++;
+            return noValue;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Maps a present key to another value, returns the previous one or noValue if the key is absent
+    long replace(long key, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        lock.lock();
+        try {
+            if (key == 0) {
+                long previous = zeroKeyValue;
+                if (previous != noValue) {
+                    zeroKeyValue = value;
+                }
+                return previous;
+            }
+            int slot = findSlot(table, capacity, key);
+            if (table.get(slot * 2) != key) {
+                return noValue;
+            }
+            long previous = table.get(slot * 2 + 1);
+            table.put(slot * 2 + 1, value);
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns value the key was mapped to, or noValue. Entries after the removed one are shifted back,
+    // so no probe sequence is broken by a free slot
+    long remove(long key) {
+        lock.lock();
+        try {
+            if (key == 0) {
+                long previous = zeroKeyValue;
+                zeroKeyValue = noValue;
+                return previous;
+            }
+            int slot = findSlot(table, capacity, key);
+            if (table.get(slot * 2) != key) {
+                return noValue;
+            }
+            long previous = table.get(slot * 2 + 1);
+            int mask = capacity - 1;
+            int free = slot;
+            for (int next = (slot + 1) & mask; table.get(next * 2) != 0; next = (next + 1) & mask) {
+                long nextKey = table.get(next * 2);
+                int home = (int) LongHashSet.mix(nextKey) & mask;
+                // Entry can take the free slot if the slot lies between its home and its current one
+                if (((next - home) & mask) >= ((next - free) & mask)) {
+                    table.put(free * 2, nextKey);
+                    table.put(free * 2 + 1, table.get(next * 2 + 1));
+                    free = next;
+                }
+            }
+            table.put(free * 2, 0);
+            table.put(free * 2 + 1, 0);
+            size--;
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size + (zeroKeyValue == noValue ? 0 : 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
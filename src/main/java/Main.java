@@ -3,35 +3,104 @@ import org.apache.logging.log4j.Logger;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.*;
 import java.util.*;
 
 
 public class Main {
-    private static final int threadSleepMs = 100;
-    private static final String pathToConfig = "src/main/resources/config.properties";
+    // MediaWiki accepts at most 50 page ids in a single query
+    private static final int maxPageBatchSize = 50;
+    private static final String defaultPathToConfig = "src/main/resources/config.properties";
     private static final Logger logger = LogManager.getLogger(Main.class);
 
     private static Path dataDirectoryPath;
-    private static String[] categories;
+    private static List<Wiki> wikis;
     private static int parallelTaskCount;
-    private static int requestDelaySeconds;
+    private static boolean useVirtualThreads;
+    private static int pageFetcherCount;
+    private static int maxlagSeconds;
     private static String pathToCrawledData;
     private static String csvFilename;
+    private static int pageBatchSize;
+    private static boolean resume;
+    private static boolean incremental;
+    private static boolean usePackStorage;
+    private static long packSegmentBytes;
+    private static boolean useResponseCache;
+    private static Path responseCacheDirectoryPath;
+    private static long responseCacheTtlMs;
+    private static long responseCacheMaxBytes;
+    private static long responseCacheMemoryBytes;
+    private static int httpConnectTimeoutMs;
+    private static int httpSocketTimeoutMs;
+    private static int httpSocketBufferSize;
+    private static int httpKeepAliveSeconds;
+    private static int httpRequestTimeoutMs;
+    private static int retryMaxAttempts;
+    private static long retryBaseDelayMs;
+    private static long retryMaxDelayMs;
+    private static int circuitBreakerFailures;
+    private static long circuitBreakerPauseSeconds;
+    private static long circuitBreakerMaxPauseSeconds;
+    private static int metricsLogIntervalSeconds;
     static int maxPagesPerLevel;
+    private static int maxPagesPerCategory;
+    private static int maxPages;
+    private static boolean useCategoryInfo;
+    private static boolean useGeneratorListing;
+    private static boolean offHeapBookkeeping;
+    private static String clusterRole;
+    private static Path clusterDirectoryPath;
+    private static String clusterWorkerId;
+    private static int clusterLeaseTimeoutSeconds;
+    private static int clusterMaxAttempts;
 
 
-    static int getThreadSleepMs() {
-        return threadSleepMs;
+    static List<Wiki> getWikis() {
+        return wikis;
     }
 
-    static String[] getCategories() {
-        return categories;
+    // Wiki by name, null if it is not configured
+    static Wiki getWiki(String name) {
+        for (Wiki wiki : wikis) {
+            if (wiki.getName().equals(name)) {
+                return wiki;
+            }
+        }
+        return null;
+    }
+
+    // Wiki of a global category by its number
+    static Wiki getWiki(int categoryNumber) {
+        for (Wiki wiki : wikis) {
+            if (wiki.getCategories().containsKey(categoryNumber)) {
+                return wiki;
+            }
+        }
+        return null;
+    }
+
+    // Global category number -> global category, of all wikis
+    static Map<Integer, String> getGlobalCategories() {
+        Map<Integer, String> globalCategories = new LinkedHashMap<>();
+        for (Wiki wiki : wikis) {
+            globalCategories.putAll(wiki.getCategories());
+        }
+        return globalCategories;
     }
 
     static int getParallelTaskCount() {
         return parallelTaskCount;
     }
+
+    static int getPageFetcherCount() {
+        return pageFetcherCount;
+    }
+
+    static boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
     static String getCsvFilename() {
         return csvFilename;
     }
@@ -40,29 +109,279 @@ public class Main {
         return dataDirectoryPath;
     }
 
-    static int getRequestDelaySeconds() {
-        return requestDelaySeconds;
+    static int getMaxlagSeconds() {
+        return maxlagSeconds;
+    }
+
+    static boolean isResume() {
+        return resume;
+    }
+
+    static boolean isIncremental() {
+        return incremental;
+    }
+
+    static boolean isUsePackStorage() {
+        return usePackStorage;
+    }
+
+    static long getPackSegmentBytes() {
+        return packSegmentBytes;
+    }
+
+    static boolean isUseResponseCache() {
+        return useResponseCache;
+    }
+
+    static Path getResponseCacheDirectoryPath() {
+        return responseCacheDirectoryPath;
+    }
+
+    static long getResponseCacheTtlMs() {
+        return responseCacheTtlMs;
+    }
+
+    static long getResponseCacheMaxBytes() {
+        return responseCacheMaxBytes;
+    }
+
+    static long getResponseCacheMemoryBytes() {
+        return responseCacheMemoryBytes;
+    }
+
+    static int getMaxPagesPerCategory() {
+        return maxPagesPerCategory;
+    }
+
+    static int getMaxPages() {
+        return maxPages;
+    }
+
+    static boolean isUseCategoryInfo() {
+        return useCategoryInfo;
+    }
+
+    static boolean isUseGeneratorListing() {
+        return useGeneratorListing;
+    }
+
+    static boolean isOffHeapBookkeeping() {
+        return offHeapBookkeeping;
+    }
+
+    static Path getClusterDirectoryPath() {
+        return clusterDirectoryPath;
+    }
+
+    static String getClusterWorkerId() {
+        return clusterWorkerId;
+    }
+
+    static int getClusterLeaseTimeoutSeconds() {
+        return clusterLeaseTimeoutSeconds;
+    }
+
+    static int getClusterMaxAttempts() {
+        return clusterMaxAttempts;
+    }
+
+    static int getPageBatchSize() {
+        return pageBatchSize;
+    }
+
+    static int getHttpConnectTimeoutMs() {
+        return httpConnectTimeoutMs;
+    }
+
+    static int getHttpSocketTimeoutMs() {
+        return httpSocketTimeoutMs;
+    }
+
+    static int getHttpSocketBufferSize() {
+        return httpSocketBufferSize;
+    }
+
+    static int getHttpKeepAliveSeconds() {
+        return httpKeepAliveSeconds;
+    }
+
+    static int getHttpRequestTimeoutMs() {
+        return httpRequestTimeoutMs;
+    }
+
+    static int getRetryMaxAttempts() {
+        return retryMaxAttempts;
+    }
+
+    static long getRetryBaseDelayMs() {
+        return retryBaseDelayMs;
+    }
+
+    static long getRetryMaxDelayMs() {
+        return retryMaxDelayMs;
+    }
+
+    static int getCircuitBreakerFailures() {
+        return circuitBreakerFailures;
+    }
+
+    static long getCircuitBreakerPauseSeconds() {
+        return circuitBreakerPauseSeconds;
+    }
+
+    static long getCircuitBreakerMaxPauseSeconds() {
+        return circuitBreakerMaxPauseSeconds;
+    }
+
+    static int getMetricsLogIntervalSeconds() {
+        return metricsLogIntervalSeconds;
+    }
+
+
+
+    // Properties file is read as ISO 8859-1, values with Cyrillic letters are decoded again
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return new String(value.getBytes("ISO8859-1"));
+    }
+
+    // Setting of a wiki: wiki.name.key, or key shared by all wikis
+    private static String getWikiProperty(Properties properties, String wikiName, String key, String defaultValue)
+            throws UnsupportedEncodingException {
+        String value = properties.getProperty("wiki." + wikiName + "." + key, properties.getProperty(key));
+        return value != null ? decode(value).trim() : defaultValue;
     }
 
+    // Setting which describes the site of a wiki: the shared key is used by the single wiki of older configs only,
+    // since it names the site of that wiki and not of the others
+    private static String getSiteProperty(Properties properties, String wikiName, String key, String defaultValue)
+            throws UnsupportedEncodingException {
+        String value = properties.getProperty(wikiName.isEmpty() ? key : "wiki." + wikiName + "." + key);
+        return value != null ? decode(value).trim() : defaultValue;
+    }
 
+    // Wikis listed in wikis, or a single wiki set by the shared settings only.
+    // Global categories are numbered across all wikis in the order they are listed
+    private static List<Wiki> readWikis(Properties properties) throws UnsupportedEncodingException {
+        // Older configs set a delay per thread in whole seconds
+        int requestDelaySeconds = Integer.valueOf(properties.getProperty("request_delay_seconds", "0"));
+        String defaultRequestsPerSecond = String.valueOf(requestDelaySeconds > 0
+                ? (double) parallelTaskCount / requestDelaySeconds : 0);
 
-    private static void readProperties() throws UnsupportedEncodingException {
+        List<String> wikiNames = new ArrayList<>();
+        if (properties.getProperty("wikis", "").trim().isEmpty()) {
+            wikiNames.add("");
+        } else {
+            for (String wikiName : properties.getProperty("wikis").split(",")) {
+                wikiNames.add(wikiName.trim());
+            }
+        }
+
+        List<Wiki> wikis = new ArrayList<>();
+        int categoryNumber = 0;
+        for (String wikiName : wikiNames) {
+            // Language wikis of Wikipedia are found by their names. Category namespace is localized, its default
+            // is known for Russian only, other wikis which call it differently from English need it set
+            String language = wikiName.isEmpty() ? "ru" : wikiName;
+            String host = language + ".wikipedia.org";
+            Wiki wiki = new Wiki(wikis.size(), wikiName,
+                    getSiteProperty(properties, wikiName, "api_url", "https://" + host + "/w/api.php"),
+                    getSiteProperty(properties, wikiName, "article_url", "https://" + host + "/wiki/"),
+                    getSiteProperty(properties, wikiName, "category_namespace",
+                            language.equals("ru") ? "Категория" : "Category"),
+                    Double.valueOf(getWikiProperty(properties, wikiName, "requests_per_second",
+                            defaultRequestsPerSecond)),
+                    Integer.valueOf(getWikiProperty(properties, wikiName, "request_burst", "1")),
+                    Integer.valueOf(getWikiProperty(properties, wikiName, "http_max_connections",
+                            String.valueOf(parallelTaskCount))));
+            for (String category : getWikiProperty(properties, wikiName, "categories", "").split(",")) {
+                if (!category.trim().isEmpty()) {
+                    wiki.addCategory(categoryNumber++, category);
+                }
+            }
+            wikis.add(wiki);
+        }
+        return wikis;
+    }
+
+
+    // Package-private for benchmarks
+    static void readProperties() throws UnsupportedEncodingException {
         Properties properties = new Properties();
 
         try {
-            FileInputStream fileInputStream = new FileInputStream(pathToConfig);
+            // Another config can be given with -Dcrawler.config=path, for example by benchmarks
+            FileInputStream fileInputStream = new FileInputStream(System.getProperty("crawler.config",
+                    defaultPathToConfig));
             properties.load(fileInputStream);
             fileInputStream.close();
         } catch (IOException e) {
             logger.error(e);
         }
 
-        categories = new String(properties.getProperty("categories").getBytes("ISO8859-1")).split(",");
         parallelTaskCount = Integer.valueOf(properties.getProperty("parallel_task_number"));
-        requestDelaySeconds = Integer.valueOf(properties.getProperty("request_delay_seconds"));
+        useVirtualThreads = Boolean.parseBoolean(properties.getProperty("use_virtual_threads", "false").trim());
+        pageFetcherCount = Integer.valueOf(properties.getProperty("page_fetcher_number",
+                String.valueOf(parallelTaskCount)));
+        wikis = readWikis(properties);
+        maxlagSeconds = Integer.valueOf(properties.getProperty("maxlag_seconds", "0"));
         pathToCrawledData = properties.getProperty("path_to_crawled_data");
         csvFilename = properties.getProperty("csv_filename").replaceAll("[\\\\/]", "");
         maxPagesPerLevel = Integer.valueOf(properties.getProperty("max_pages_per_level"));
+        maxPagesPerCategory = Integer.valueOf(properties.getProperty("max_pages_per_category", "0"));
+        maxPages = Integer.valueOf(properties.getProperty("max_pages", "0"));
+        useCategoryInfo = Boolean.parseBoolean(properties.getProperty("use_category_info", "false").trim());
+        useGeneratorListing = Boolean.parseBoolean(properties.getProperty("use_generator_listing", "false").trim());
+        offHeapBookkeeping = Boolean.parseBoolean(properties.getProperty("off_heap_bookkeeping", "false").trim());
+        resume = Boolean.parseBoolean(properties.getProperty("resume", "false").trim());
+        incremental = Boolean.parseBoolean(properties.getProperty("incremental", "false").trim());
+        usePackStorage = properties.getProperty("storage", "files").trim().equals("pack");
+        packSegmentBytes = Long.valueOf(properties.getProperty("pack_segment_size_mb", "256")) * 1024 * 1024;
+        useResponseCache = Boolean.parseBoolean(properties.getProperty("response_cache", "false").trim());
+        responseCacheTtlMs = Long.valueOf(properties.getProperty("response_cache_ttl_hours", "24")) * 3600 * 1000;
+        responseCacheMaxBytes = Long.valueOf(properties.getProperty("response_cache_max_size_mb", "1024")) *
+                1024 * 1024;
+        responseCacheMemoryBytes = Long.valueOf(properties.getProperty("response_cache_memory_mb", "64")) *
+                1024 * 1024;
+        pageBatchSize = Math.max(1, Math.min(maxPageBatchSize,
+                Integer.valueOf(properties.getProperty("page_batch_size", "1"))));
+        httpConnectTimeoutMs = Integer.valueOf(properties.getProperty("http_connect_timeout_ms", "10000"));
+        httpSocketTimeoutMs = Integer.valueOf(properties.getProperty("http_socket_timeout_ms", "30000"));
+        httpSocketBufferSize = Integer.valueOf(properties.getProperty("http_socket_buffer_size", "0"));
+        httpKeepAliveSeconds = Integer.valueOf(properties.getProperty("http_keep_alive_seconds", "30"));
+        httpRequestTimeoutMs = Integer.valueOf(properties.getProperty("http_request_timeout_ms", "120000"));
+        retryMaxAttempts = Integer.valueOf(properties.getProperty("retry_max_attempts", "5"));
+        retryBaseDelayMs = Long.valueOf(properties.getProperty("retry_base_delay_ms", "1000"));
+        retryMaxDelayMs = Long.valueOf(properties.getProperty("retry_max_delay_ms", "60000"));
+        circuitBreakerFailures = Integer.valueOf(properties.getProperty("circuit_breaker_failures", "10"));
+        circuitBreakerPauseSeconds = Long.valueOf(properties.getProperty("circuit_breaker_pause_seconds", "30"));
+        circuitBreakerMaxPauseSeconds = Long.valueOf(properties.getProperty("circuit_breaker_max_pause_seconds",
+                "600"));
+        metricsLogIntervalSeconds = Integer.valueOf(properties.getProperty("metrics_log_interval_seconds", "0"));
+        // Processes of a distributed crawl on one host may share the config and get their role on the command line
+        clusterRole = System.getProperty("crawler.cluster_role",
+                properties.getProperty("cluster_role", "none")).trim();
+        if (!Arrays.asList("none", "coordinator", "worker").contains(clusterRole)) {
+            throw new IllegalArgumentException("Unknown cluster_role: " + clusterRole +
+                    ", expected none, coordinator or worker");
+        }
+        clusterDirectoryPath = Paths.get(properties.getProperty("cluster_directory", "cluster").trim());
+        // Process id and host name by default, kept to characters allowed in file names
+        clusterWorkerId = System.getProperty("crawler.cluster_worker_id",
+                properties.getProperty("cluster_worker_id", ManagementFactory.getRuntimeMXBean().getName()))
+                .trim().replaceAll("[^\\w.-]", "_");
+        clusterLeaseTimeoutSeconds = Integer.valueOf(properties.getProperty("cluster_lease_timeout_seconds", "60"));
+        clusterMaxAttempts = Integer.valueOf(properties.getProperty("cluster_max_attempts", "3"));
+
+        if (pathToCrawledData.equals(".")) {
+            dataDirectoryPath = Paths.get(System.getProperty("user.dir"), "wiki_crawled_data");
+        } else {
+            dataDirectoryPath = Paths.get(pathToCrawledData, "wiki_crawled_data");
+        }
+        // Next to the data directory, which is deleted before a new crawl
+        String responseCacheDirectory = properties.getProperty("response_cache_directory", "").trim();
+        responseCacheDirectoryPath = responseCacheDirectory.isEmpty()
+                ? Paths.get(dataDirectoryPath.getParent().toString(), "wiki_response_cache")
+                : Paths.get(responseCacheDirectory);
 
     }
 
@@ -70,25 +389,32 @@ public class Main {
     public static void main(String[] args) {
         logger.info("Crawler started");
 
-        StringBuilder finalCsvData = new StringBuilder();
-
         try {
             readProperties();
-        } catch (UnsupportedEncodingException e) {
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
             logger.error("Cannot read properties");
             logger.error(e);
             System.exit(1);
         }
 
-        if (pathToCrawledData.equals(".")) {
-            dataDirectoryPath = Paths.get(System.getProperty("user.dir"), "wiki_crawled_data");
-        } else {
-            dataDirectoryPath = Paths.get(pathToCrawledData, "wiki_crawled_data");
-        }
-//
-
         try {
-            Crawler.run();
+            switch (clusterRole) {
+                case "coordinator":
+                    ClusterCoordinator.run();
+                    break;
+                case "worker":
+                    ClusterWorker.run();
+                    break;
+                default:
+                    if (!Crawler.run()) {
+                        logger.error("Crawl is not completed");
+                        System.exit(1);
+                    }
+            }
+        } catch (IOException e) {
+            logger.error("Cannot use cluster directory " + clusterDirectoryPath.toString());
+            logger.error(e);
+            System.exit(1);
         } catch (InterruptedException e) {
             logger.error(e);
             System.exit(1);
@@ -0,0 +1,251 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Articles appended to rolling pack files, every article is a separate gzip member,
+ * so it can be read by its offset and length without decompressing its neighbours.
+ * Location of an article is "packs/articles-NNNNN.pack:offset:length".
+ * Every stored article is also listed in articles.idx as file id, location and title.
+ * Articles are compressed straight into a pack while they are downloaded. A pack takes one article at a time,
+ * so articles written at once go to packs of their own, which are reused by later articles.
+ * Each run starts new packs, so a pack cut off by a crash is never appended to.
+ * Packs are never compacted: in incremental mode articles replaced by new revisions or no longer listed
+ * stay in the packs of earlier runs, so the packs only grow until a full crawl writes them anew.
+ */
+class PackArticleStorage implements ArticleStorage {
+    private static final Logger logger = LogManager.getLogger(PackArticleStorage.class);
+
+    static final String packDirectoryName = "packs";
+    static final String indexFilename = "articles.idx";
+    private static final String packFilenamePrefix = "articles-";
+    private static final String packFilenameSuffix = ".pack";
+    // Pack numbers are written with five digits at least, other files in the directory are not packs
+    private static final Pattern packFilenamePattern = Pattern.compile(
+            Pattern.quote(packFilenamePrefix) + "(\\d{1,9})" + Pattern.quote(packFilenameSuffix));
+    private static final int writeBufferSize = 64 * 1024;
+
+    // Pack file written by one article at a time
+    private static class Pack {
+        private final String name;
+        private final FileChannel channel;
+        private long position;
+
+        Pack(String name, FileChannel channel) {
+            this.name = name;
+            this.channel = channel;
+        }
+    }
+
+    private final Path dataDirectoryPath;
+    private final Path packDirectoryPath;
+    private final long segmentBytes;
+    private final BufferedWriter indexWriter;
+    // Not a monitor, so virtual threads waiting for a pack do not pin their carrier threads
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guarded by lock
+    private final Deque<Pack> idlePacks = new ArrayDeque<>();
+    private final List<Pack> openPacks = new ArrayList<>();
+    // No pack is opened after close, even by page batches of a cancelled crawl
+    private boolean closed;
+    private int packNumber;
+
+
+    PackArticleStorage(Path dataDirectoryPath, long segmentBytes, boolean resume) throws IOException {
+        this.dataDirectoryPath = dataDirectoryPath;
+        this.packDirectoryPath = Paths.get(dataDirectoryPath.toString(), packDirectoryName);
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(packDirectoryPath);
+
+        // Packs of previous runs stay readable, new articles go to new packs
+        try (DirectoryStream<Path> packs = Files.newDirectoryStream(packDirectoryPath,
+                packFilenamePrefix + "*" + packFilenameSuffix)) {
+            for (Path pack : packs) {
+                Matcher matcher = packFilenamePattern.matcher(pack.getFileName().toString());
+                if (!matcher.matches()) {
+                    logger.warn("Skipping file which is not a pack: " + pack.toString());
+                    continue;
+                }
+                packNumber = Math.max(packNumber, Integer.parseInt(matcher.group(1)) + 1);
+            }
+        }
+
+        indexWriter = Files.newBufferedWriter(Paths.get(dataDirectoryPath.toString(), indexFilename),
+                StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                resume ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+
+    // Idle pack with room left, or a new one. Full packs are closed
+    private Pack takePack() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Article storage is closed");
+            }
+            while (!idlePacks.isEmpty()) {
+                Pack pack = idlePacks.pop();
+                if (pack.position < segmentBytes) {
+                    return pack;
+                }
+                pack.channel.close();
+                openPacks.remove(pack);
+            }
+            String packName = packFilenamePrefix + String.format("%05d", packNumber++) + packFilenameSuffix;
+            Pack pack = new Pack(packName, FileChannel.open(Paths.get(packDirectoryPath.toString(), packName),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+            openPacks.add(pack);
+            logger.info("Opened pack " + packName);
+            return pack;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void returnPack(Pack pack) {
+        lock.lock();
+        try {
+            idlePacks.push(pack);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addToIndex(String fileId, String location, String title) throws IOException {
+        lock.lock();
+        try {
+            indexWriter.write(String.join("\t", fileId, location, title));
+            indexWriter.newLine();
+            indexWriter.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Text is compressed into the end of a pack taken for this article. Closing the writer finishes the gzip member
+    // and gives the pack back; an article which is not committed then stays in the pack unused
+    @Override
+    public PendingArticle create(Path directory, String fileId) throws IOException {
+        Pack pack = takePack();
+        long offset = pack.position;
+        AtomicLong length = new AtomicLong(-1);
+
+        OutputStream packStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int start, int count) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, start, count);
+                while (buffer.hasRemaining()) {
+                    pack.position += pack.channel.write(buffer, pack.position);
+                }
+            }
+
+            // Pack channel stays open for next articles
+            @Override
+            public void close() {
+                if (length.compareAndSet(-1, pack.position - offset)) {
+                    returnPack(pack);
+                }
+            }
+        };
+        Writer writer;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+                    new BufferedOutputStream(packStream, writeBufferSize)), StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            packStream.close();
+            throw e;
+        }
+
+        return new PendingArticle() {
+            @Override
+            public Writer getWriter() {
+                return writer;
+            }
+
+            @Override
+            public String commit(String title) throws IOException {
+                if (length.get() < 0) {
+                    throw new IllegalStateException("Article is committed before its writer is closed: " + fileId);
+                }
+                String location = packDirectoryName + "/" + pack.name + ":" + offset + ":" + length.get();
+                addToIndex(fileId, location, title);
+                return location;
+            }
+
+            // Text stays in the pack unused
+            @Override
+            public void discard() {
+            }
+        };
+    }
+
+
+    // Article stays where it is in the pack of the previous run
+    @Override
+    public String reuse(String previousLocation, Path directory, String fileId, String title) throws IOException {
+        if (!PackReader.isPackLocation(previousLocation)
+                || !Files.exists(Paths.get(dataDirectoryPath.toString(), PackReader.getPackPath(previousLocation)))) {
+            return null;
+        }
+        addToIndex(fileId, previousLocation, title);
+        return previousLocation;
+    }
+
+
+    // Packs are not compacted, only text files left from a run with file storage are deleted
+    @Override
+    public boolean delete(String location) throws IOException {
+        if (PackReader.isPackLocation(location)) {
+            return false;
+        }
+        return Files.deleteIfExists(Paths.get(dataDirectoryPath.toString(), location));
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            for (Pack pack : openPacks) {
+                pack.channel.close();
+            }
+            openPacks.clear();
+            idlePacks.clear();
+            indexWriter.close();
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Reads articles stored by PackArticleStorage: by file id using articles.idx, by location taken from the csv
+ * file, or all articles one after another in pack order.
+ */
+class PackReader implements Closeable {
+    private static final Logger logger = LogManager.getLogger(PackReader.class);
+
+    static class Entry {
+        private final String fileId;
+        private final String location;
+        private final String title;
+
+        Entry(String fileId, String location, String title) {
+            this.fileId = fileId;
+            this.location = location;
+            this.title = title;
+        }
+
+        String getFileId() {
+            return fileId;
+        }
+
+        String getLocation() {
+            return location;
+        }
+
+        String getTitle() {
+            return title;
+        }
+    }
+
+    private final Path dataDirectoryPath;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    // Guarded by this
+    private final Map<String, FileChannel> channels = new HashMap<>();
+
+
+    PackReader(Path dataDirectoryPath) throws IOException {
+        this.dataDirectoryPath = dataDirectoryPath;
+
+        Path indexPath = Paths.get(dataDirectoryPath.toString(), PackArticleStorage.indexFilename);
+        try (BufferedReader reader = Files.newBufferedReader(indexPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 3 || !isPackLocation(fields[1])) {
+                    logger.warn("Skipping malformed pack index record: " + line);
+                    continue;
+                }
+                // Article saved again after resume replaces the earlier one
+                entries.put(fields[0], new Entry(fields[0], fields[1], fields[2]));
+            }
+        }
+    }
+
+
+    static boolean isPackLocation(String location) {
+        return location.startsWith(PackArticleStorage.packDirectoryName + "/") && location.split(":").length == 3;
+    }
+
+    // Pack file relative to the data directory
+    static String getPackPath(String location) {
+        return location.split(":")[0];
+    }
+
+
+    Entry getEntry(String fileId) {
+        return entries.get(fileId);
+    }
+
+    // Returns null if there is no article with given file id
+    String read(String fileId) throws IOException {
+        Entry entry = entries.get(fileId);
+        return entry == null ? null : readAt(entry.location);
+    }
+
+
+    private synchronized FileChannel getChannel(String packPath) throws IOException {
+        FileChannel channel = channels.get(packPath);
+        if (channel == null) {
+            channel = FileChannel.open(Paths.get(dataDirectoryPath.toString(), packPath), StandardOpenOption.READ);
+            channels.put(packPath, channel);
+        }
+        return channel;
+    }
+
+    String readAt(String location) throws IOException {
+        String[] parts = location.split(":");
+        long offset = Long.parseLong(parts[1]);
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.parseInt(parts[2]));
+
+        FileChannel channel = getChannel(parts[0]);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Pack is cut off at " + location);
+            }
+        }
+
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(buffer.array()))) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+
+    // Articles in pack order, so every pack is read from start to end
+    void forEach(BiConsumer<Entry, String> consumer) throws IOException {
+        List<Entry> ordered = new ArrayList<>(entries.values());
+        ordered.sort(Comparator.comparing((Entry entry) -> getPackPath(entry.location))
+                .thenComparingLong(entry -> Long.parseLong(entry.location.split(":")[1])));
+        for (Entry entry : ordered) {
+            consumer.accept(entry, readAt(entry.location));
+        }
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (FileChannel channel : channels.values()) {
+            channel.close();
+        }
+        channels.clear();
+    }
+}
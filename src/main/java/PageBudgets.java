@@ -0,0 +1,147 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Page budgets of the crawl: pages of the whole crawl, of every level of a global category
+ * and of every single category. A page is saved only after it got a unit of every budget,
+ * so the crawl stops at exactly the configured numbers. Units of pages which were not saved are given back.
+ * Pages listed by categories which have not claimed yet are counted apart, so listings stop early
+ * once they would fill the budget. Limit 0 means no limit.
+ */
+class PageBudgets {
+    private final int maxPages;
+    private final int maxPagesPerLevel;
+    private final int maxPagesPerCategory;
+
+    // Counters are changed under the lock, so a reservation sees all counters of another one or none
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicInteger totalPages = new AtomicInteger();
+    private final AtomicInteger totalListed = new AtomicInteger();
+    // Level key -> pages
+    private final ConcurrentHashMap<Long, AtomicInteger> levelPages = new ConcurrentHashMap<>();
+    // Level key -> pages listed and not claimed yet
+    private final ConcurrentHashMap<Long, AtomicInteger> levelListed = new ConcurrentHashMap<>();
+
+
+    PageBudgets(int maxPages, int maxPagesPerLevel, int maxPagesPerCategory) {
+        this.maxPages = maxPages;
+        this.maxPagesPerLevel = maxPagesPerLevel;
+        this.maxPagesPerCategory = maxPagesPerCategory;
+    }
+
+
+    // Number of the global category in the high half, level in the low one
+    static long levelKey(int globalCategory, int level) {
+        return (long) globalCategory << 32 | level;
+    }
+
+    // Level key as global category number and level, for example 03/2
+    static String levelName(long levelKey) {
+        return String.format("%02d/%d", levelKey >>> 32, (int) levelKey);
+    }
+
+    private static int getCount(ConcurrentHashMap<Long, AtomicInteger> counters, long levelKey) {
+        AtomicInteger counter = counters.get(levelKey);
+        return counter == null ? 0 : counter.get();
+    }
+
+    private static int left(int limit, int count) {
+        return limit > 0 ? Math.max(0, limit - count) : Integer.MAX_VALUE;
+    }
+
+
+    // Pages saved before resume
+    void restore(Map<Long, Integer> levelCounts) {
+        lock.lock();
+        try {
+            levelCounts.forEach((levelKey, count) -> {
+                levelPages.computeIfAbsent(levelKey, k -> new AtomicInteger()).addAndGet(count);
+                totalPages.addAndGet(count);
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Reserves up to wanted pages for a category, returns number of reserved pages
+    int reserve(long levelKey, AtomicInteger categoryPages, int wanted) {
+        lock.lock();
+        try {
+            AtomicInteger levelCounter = levelPages.computeIfAbsent(levelKey, k -> new AtomicInteger());
+            int granted = Math.min(wanted, left(maxPagesPerCategory, categoryPages.get()));
+            granted = Math.min(granted, left(maxPagesPerLevel, levelCounter.get()));
+            granted = Math.min(granted, left(maxPages, totalPages.get()));
+            if (granted > 0) {
+                categoryPages.addAndGet(granted);
+                levelCounter.addAndGet(granted);
+                totalPages.addAndGet(granted);
+            }
+            return granted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(long levelKey, AtomicInteger categoryPages, int count) {
+        if (count <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            categoryPages.addAndGet(-count);
+            levelPages.get(levelKey).addAndGet(-count);
+            totalPages.addAndGet(-count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Sets number of pages a category listed and could take, it is 0 again once the category claims.
+    // Pages over the category budget are not counted
+    void setListed(long levelKey, AtomicInteger categoryPages, AtomicInteger listedPages, int count) {
+        lock.lock();
+        try {
+            int counted = Math.min(count, left(maxPagesPerCategory, categoryPages.get()));
+            int added = counted - listedPages.getAndSet(counted);
+            levelListed.computeIfAbsent(levelKey, k -> new AtomicInteger()).addAndGet(added);
+            totalListed.addAndGet(added);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    boolean isLevelUsedUp(long levelKey) {
+        return maxPagesPerLevel > 0 && getCount(levelPages, levelKey) >= maxPagesPerLevel;
+    }
+
+    boolean isTotalUsedUp() {
+        return maxPages > 0 && totalPages.get() >= maxPages;
+    }
+
+    // Whether pages taken and pages listed by categories not claimed yet fill the budget of the level or of the crawl
+    boolean wouldUseUp(long levelKey) {
+        lock.lock();
+        try {
+            return maxPagesPerLevel > 0
+                    && getCount(levelPages, levelKey) + getCount(levelListed, levelKey) >= maxPagesPerLevel
+                    || maxPages > 0 && totalPages.get() + totalListed.get() >= maxPages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Pages saved or being downloaded by level
+    Map<Long, Integer> getLevelCounts() {
+        Map<Long, Integer> counts = new TreeMap<>();
+        levelPages.forEach((levelKey, count) -> counts.put(levelKey, count.get()));
+        return counts;
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * File ids of pages claimed by categories, by numeric page keys. A file id is the filename prefix
+ * of its category and the page index, so it is kept as a long: number of the prefix in the high bits
+ * and the index in the low ones. Prefixes are stored once per category instead of once per page.
+ * A claim is marked when its page is saved, until then it may still be released.
+ */
+class PageClaims {
+    private static final long savedFlag = 1L << 62;
+
+    private final LongLongHashMap fileIds;
+    private final Map<String, Integer> prefixNumbers = new ConcurrentHashMap<>();
+    private final Map<Integer, String> prefixes = new ConcurrentHashMap<>();
+    private final AtomicInteger nextPrefixNumber = new AtomicInteger();
+
+
+    PageClaims(boolean offHeap) {
+        fileIds = new LongLongHashMap(offHeap);
+    }
+
+
+    private long pack(String fileId) {
+        int separator = fileId.lastIndexOf('_') + 1;
+        int prefixNumber = prefixNumbers.computeIfAbsent(fileId.substring(0, separator), prefix -> {
+            int number = nextPrefixNumber.getAndIncrement();
+            prefixes.put(number, prefix);
+            return number;
+        });
+        return ((long) prefixNumber << 32) | Integer.parseInt(fileId.substring(separator));
+    }
+
+    private String unpack(long packedFileId) {
+        if (packedFileId == LongLongHashMap.noValue) {
+            return null;
+        }
+        packedFileId &= ~savedFlag;
+        // Index is zero padded to three digits, like String.format("%03d") of ProcessCategory but cheaper
+        String index = Integer.toString((int) packedFileId);
+        return prefixes.get((int) (packedFileId >>> 32)) + "000".substring(Math.min(3, index.length())) + index;
+    }
+
+
+    // File id of the page if it was already claimed by a category, otherwise null
+    String get(long pageKey) {
+        return unpack(fileIds.get(pageKey));
+    }
+
+    // Returns file id of the page if it was already claimed by another category, otherwise claims it
+    String claim(long pageKey, String fileId) {
+        return unpack(fileIds.putIfAbsent(pageKey, pack(fileId)));
+    }
+
+    // Whether the page is claimed and its file is saved
+    boolean isSaved(long pageKey) {
+        long packedFileId = fileIds.get(pageKey);
+        return packedFileId != LongLongHashMap.noValue && (packedFileId & savedFlag) != 0;
+    }
+
+    // Called by the category which claimed the page
+    void markSaved(long pageKey) {
+        long packedFileId = fileIds.get(pageKey);
+        if (packedFileId != LongLongHashMap.noValue) {
+            fileIds.replace(pageKey, packedFileId | savedFlag);
+        }
+    }
+
+    // Page which its category could not save can be claimed by another one
+    void release(long pageKey) {
+        fileIds.remove(pageKey);
+    }
+
+    int size() {
+        return fileIds.size();
+    }
+}
@@ -0,0 +1,124 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Index of saved pages kept between runs: page id, last revision id, article length and article location
+ * in the storage relative to the data directory, one tab separated line per saved article.
+ * In incremental mode pages whose revision did not change since the previous run are taken from this index
+ * instead of being downloaded again.
+ */
+class PageIndex {
+    private static final Logger logger = LogManager.getLogger(PageIndex.class);
+
+    private static final String indexFilename = "page_index.tsv";
+
+    static class Entry {
+        private final String pageId;
+        private final long revisionId;
+        private final int pageLength;
+        private final String relativePath;
+
+        Entry(String pageId, long revisionId, int pageLength, String relativePath) {
+            this.pageId = pageId;
+            this.revisionId = revisionId;
+            this.pageLength = pageLength;
+            this.relativePath = relativePath;
+        }
+
+        long getRevisionId() {
+            return revisionId;
+        }
+
+        int getPageLength() {
+            return pageLength;
+        }
+
+        String getRelativePath() {
+            return relativePath;
+        }
+    }
+
+    private final Path indexPath;
+    private final Map<String, Entry> previousEntries = new HashMap<>();
+    private final List<String> previousRelativePaths = new ArrayList<>();
+    // Entries of current run by relative path
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+
+    PageIndex(Path dataDirectoryPath, boolean loadPrevious) throws IOException {
+        this.indexPath = Paths.get(dataDirectoryPath.toString(), indexFilename);
+
+        if (loadPrevious && Files.exists(indexPath)) {
+            try (BufferedReader reader = Files.newBufferedReader(indexPath, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length != 4) {
+                        logger.warn("Skipping malformed page index record: " + line);
+                        continue;
+                    }
+                    Entry entry = new Entry(fields[0], Long.parseLong(fields[1]), Integer.parseInt(fields[2]),
+                            fields[3]);
+                    previousEntries.put(entry.pageId, entry);
+                    previousRelativePaths.add(entry.relativePath);
+                }
+            }
+            logger.info("Loaded page index with " + previousEntries.size() + " pages");
+        }
+    }
+
+
+    Entry getPreviousEntry(String pageId) {
+        return previousEntries.get(pageId);
+    }
+
+    boolean hasPreviousEntries() {
+        return !previousEntries.isEmpty();
+    }
+
+
+    void pageSaved(String pageId, long revisionId, int pageLength, String relativePath) {
+        entries.put(relativePath, new Entry(pageId, revisionId, pageLength, relativePath));
+    }
+
+
+    // Delete articles of the previous run which are not part of the current one
+    void deleteStaleFiles(ArticleStorage storage) throws IOException {
+        int deletedCount = 0;
+        for (String relativePath : previousRelativePaths) {
+            if (!entries.containsKey(relativePath) && storage.delete(relativePath)) {
+                deletedCount++;
+            }
+        }
+        logger.info("Deleted " + deletedCount + " stale page files");
+    }
+
+
+    void write() throws IOException {
+        Path tempPath = Paths.get(indexPath.toString() + ".part");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            for (Entry entry : entries.values()) {
+                writer.write(String.join("\t", entry.pageId, String.valueOf(entry.revisionId),
+                        String.valueOf(entry.pageLength), entry.relativePath));
+                writer.newLine();
+            }
+        }
+        Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Page index written to " + indexPath.toString());
+    }
+}
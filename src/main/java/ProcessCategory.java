@@ -1,249 +1,1218 @@
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.config.CookieSpecs;
-import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
 import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
-public class ProcessCategory implements Callable<String> {
+public class ProcessCategory implements LevelScheduler.CategoryTask {
     private static final Logger logger = LogManager.getLogger(ProcessCategory.class);
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    // MediaWiki accepts at most 50 page ids in a single query
+    private static final int infoBatchSize = 50;
+    // Members listed with extracts per generator request, each of their extracts takes a request of its own
+    private static final int generatorBatchSize = 20;
 
+    private final Wiki wiki;
     private final String category;
     private final String globalCategory;
     private final int subcategoryLevel;
     private final Path path;
     private final String filenamePrefix;
-    private StringBuilder csvData;
+    private final TaskParameters taskParameters;
+    private final long levelKey;
+    private final AtomicInteger savedPagesCount = new AtomicInteger();
+    // Page budget taken by the category, pages saved before resume included
+    private final AtomicInteger categoryPages = new AtomicInteger();
+    // Listed pages the category could take, counted by the page budgets until the category claims
+    private final AtomicInteger listedPages = new AtomicInteger();
+    private volatile boolean failed;
+    // Listed pages skipped because the page budget was used up
+    private int skippedCount;
+
+    // Listing kept until the level is claimed: page ids and titles by file index, subcategories title -> page id
+    private final List<String> listedPageIds = new ArrayList<>();
+    private final List<String> listedTitles = new ArrayList<>();
+    private Map<String, String> subcategoryNameIdMap = new HashMap<>();
+    private Map<String, int[]> categorySizes = new HashMap<>();
+    private final Map<String, Long> revisionIds = new HashMap<>();
+    // Revisions of articles which came with a generator listing
+    private final Map<String, Long> listedRevisionIds = new HashMap<>();
+    // Extracts which came with a generator listing before the owners of the pages were known, by page id
+    private final Map<String, ExtractedPage> extractedPages = new HashMap<>();
+    // File indexes of listed pages claimed by other categories, referenced once their owners saved them
+    private final List<Integer> pendingReferences = new ArrayList<>();
 
-    private static final String url = "https://ru.wikipedia.org/w/api.php";
-    private CloseableHttpClient httpClient;
     private final List<NameValuePair> paramsCat = new ArrayList<>();
     private final List<NameValuePair> paramsPage = new ArrayList<>();
+    private final List<NameValuePair> paramsInfo = new ArrayList<>();
+    private final List<NameValuePair> paramsCategoryInfo = new ArrayList<>();
+    private final List<NameValuePair> paramsGenerator = new ArrayList<>();
 
 
     ProcessCategory (TaskParameters taskParameters){
+        this.taskParameters = taskParameters;
+        this.wiki = taskParameters.getWiki();
         this.category = taskParameters.getCurrentCategory();
         this.globalCategory = taskParameters.getGlobalCategory();
         this.subcategoryLevel = taskParameters.getLevel();
         this.path = taskParameters.getPathToStoreCategoryPages();
         this.filenamePrefix = taskParameters.getPrefixForPageFilename();
-
-        httpClient = HttpClients.custom().setDefaultRequestConfig(RequestConfig.custom()
-                .setCookieSpec(CookieSpecs.STANDARD).build())
-                .build();
+        this.levelKey = taskParameters.getLevelKey();
 
         paramsCat.add(new BasicNameValuePair("action", "query"));
         paramsCat.add(new BasicNameValuePair("format", "json"));
         paramsCat.add(new BasicNameValuePair("list", "categorymembers"));
         paramsCat.add(new BasicNameValuePair("cmprop", "title|type|ids"));
         paramsCat.add(new BasicNameValuePair("cmlimit", "500"));
+        if (Main.getMaxlagSeconds() > 0) {
+            paramsCat.add(new BasicNameValuePair("maxlag", String.valueOf(Main.getMaxlagSeconds())));
+        }
 
         paramsPage.add(new BasicNameValuePair("action", "query"));
         paramsPage.add(new BasicNameValuePair("format", "json"));
-        paramsPage.add(new BasicNameValuePair("prop", "extracts"));
+        paramsPage.add(new BasicNameValuePair("prop", "extracts|info"));
         paramsPage.add(new BasicNameValuePair("exsectionformat", "plain"));
+        paramsPage.add(new BasicNameValuePair("exlimit", "max"));
+        if (Main.getMaxlagSeconds() > 0) {
+            paramsPage.add(new BasicNameValuePair("maxlag", String.valueOf(Main.getMaxlagSeconds())));
+        }
+
+        paramsInfo.add(new BasicNameValuePair("action", "query"));
+        paramsInfo.add(new BasicNameValuePair("format", "json"));
+        paramsInfo.add(new BasicNameValuePair("prop", "info"));
+        if (Main.getMaxlagSeconds() > 0) {
+            paramsInfo.add(new BasicNameValuePair("maxlag", String.valueOf(Main.getMaxlagSeconds())));
+        }
+
+        paramsCategoryInfo.add(new BasicNameValuePair("action", "query"));
+        paramsCategoryInfo.add(new BasicNameValuePair("format", "json"));
+        paramsCategoryInfo.add(new BasicNameValuePair("prop", "categoryinfo"));
+        if (Main.getMaxlagSeconds() > 0) {
+            paramsCategoryInfo.add(new BasicNameValuePair("maxlag", String.valueOf(Main.getMaxlagSeconds())));
+        }
+
+        // Articles and subcategories of the category with their revisions, extracts are added per request
+        paramsGenerator.add(new BasicNameValuePair("action", "query"));
+        paramsGenerator.add(new BasicNameValuePair("format", "json"));
+        paramsGenerator.add(new BasicNameValuePair("generator", "categorymembers"));
+        paramsGenerator.add(new BasicNameValuePair("gcmnamespace", "0|14"));
+        if (Main.getMaxlagSeconds() > 0) {
+            paramsGenerator.add(new BasicNameValuePair("maxlag", String.valueOf(Main.getMaxlagSeconds())));
+        }
     }
 
 
-    private String makeCategoryUrl(String categoryName, String cmcontinue) {
+    // Package-private for benchmarks
+    String makeCategoryUrl(String categoryName, String cmcontinue) {
         paramsCat.add(new BasicNameValuePair("cmtitle", categoryName));
         paramsCat.add(new BasicNameValuePair("cmcontinue", cmcontinue));
         String encodedParams = URLEncodedUtils.format(paramsCat, "UTF-8");
         paramsCat.remove(paramsCat.size()-1);
         paramsCat.remove(paramsCat.size()-1);
-        return url + "?" + encodedParams;
+        return wiki.getApiUrl() + "?" + encodedParams;
+    }
+
+
+    // Page batches of one category are downloaded concurrently, so shared params are copied
+    String makePagesUrl(List<String> pageIds, String excontinue){
+        List<NameValuePair> params = new ArrayList<>(paramsPage);
+        params.add(new BasicNameValuePair("pageids", String.join("|", pageIds)));
+        if (!excontinue.isEmpty()) {
+            params.add(new BasicNameValuePair("excontinue", excontinue));
+        }
+        String encodedParams = URLEncodedUtils.format(params, "UTF-8");
+        return wiki.getApiUrl() + "?" + encodedParams;
+    }
+
+    private String makeInfoUrl(List<String> pageIds){
+        paramsInfo.add(new BasicNameValuePair("pageids", String.join("|", pageIds)));
+        String encodedParams = URLEncodedUtils.format(paramsInfo, "UTF-8");
+        paramsInfo.remove(paramsInfo.size()-1);
+        return wiki.getApiUrl() + "?" + encodedParams;
     }
 
+    private String makeCategoryInfoUrl(List<String> categoryNames){
+        paramsCategoryInfo.add(new BasicNameValuePair("titles", String.join("|", categoryNames)));
+        String encodedParams = URLEncodedUtils.format(paramsCategoryInfo, "UTF-8");
+        paramsCategoryInfo.remove(paramsCategoryInfo.size()-1);
+        return wiki.getApiUrl() + "?" + encodedParams;
+    }
 
-    private String makePageUrl(String pageId){
-        paramsPage.add(new BasicNameValuePair("pageids", pageId));
-        String encodedParams = URLEncodedUtils.format(paramsPage, "UTF-8");
-        paramsPage.remove(paramsPage.size()-1);
-        return url + "?" + encodedParams;
+    // Continuation values are passed back as they came, so the generator moves on to the next members
+    // only after all extracts of the current ones are returned. Without extracts members come 500 per request
+    String makeGeneratorUrl(String categoryName, Map<String, String> continueParams, boolean withExtracts) {
+        List<NameValuePair> params = new ArrayList<>(paramsGenerator);
+        if (withExtracts) {
+            params.add(new BasicNameValuePair("gcmlimit", String.valueOf(generatorBatchSize)));
+            params.add(new BasicNameValuePair("prop", "extracts|info"));
+            params.add(new BasicNameValuePair("exsectionformat", "plain"));
+            params.add(new BasicNameValuePair("exlimit", "max"));
+        } else {
+            params.add(new BasicNameValuePair("gcmlimit", "500"));
+            params.add(new BasicNameValuePair("prop", "info"));
+        }
+        params.add(new BasicNameValuePair("gcmtitle", categoryName));
+        continueParams.forEach((name, value) -> params.add(new BasicNameValuePair(name, value)));
+        String encodedParams = URLEncodedUtils.format(params, "UTF-8");
+        return wiki.getApiUrl() + "?" + encodedParams;
     }
 
     private String quoteWrapper(String value){
         return "\"" + value + "\"";
     }
 
+    private String fileId(int i) {
+        return filenamePrefix + String.format("%03d", i);
+    }
+
+
+    // Page length and article location are empty for pages saved in another category,
+    // original file id is empty for originals
+    private String makeCsvRow(String fileId, String title, String pageLength, String originalFileId,
+                              String location) throws IOException {
+        String url = wiki.getArticleUrl() + URLEncoder.encode(title, "UTF-8")
+                .replaceAll("\\+", "_");
+        String categoryNumber = fileId.split("_")[0];
+
+
+        return String.join(",",
+                quoteWrapper(fileId),
+                quoteWrapper(title),
+                quoteWrapper(url),
+                categoryNumber,
+                String.valueOf(subcategoryLevel),
+                pageLength,
+                originalFileId.isEmpty() ? "" : quoteWrapper(originalFileId),
+                location.isEmpty() ? "" : quoteWrapper(location));
+    }
+
+
+    private void pageSaved(String pageId, long revisionId, String fileId, String title, int pageLength,
+                           String relativePath) throws IOException {
+        String csvRow = makeCsvRow(fileId, title, String.valueOf(pageLength), "", relativePath);
+        Crawler.getCsvSink().addRow(csvRow);
+        Crawler.getPageIndex().pageSaved(wiki.key(pageId), revisionId, pageLength, relativePath);
+        Crawler.getJournal().pageSaved(filenamePrefix, wiki.key(pageId), fileId, revisionId, pageLength, relativePath, csvRow);
+        Crawler.pageFileSaved(wiki.pageKey(pageId));
+        savedPagesCount.incrementAndGet();
+    }
+
+
+    // Page already saved in another category gets only a csv row referencing the original file
+    private void pageReferenced(String pageId, String fileId, String title, String originalFileId)
+            throws IOException {
+        logger.debug("Page {} already saved as {}", title, originalFileId);
+        Crawler.getMetrics().pageReferenced();
+        String csvRow = makeCsvRow(fileId, title, "", originalFileId, "");
+        Crawler.getCsvSink().addRow(csvRow);
+        Crawler.getJournal().pageReferenced(filenamePrefix, wiki.key(pageId), csvRow);
+    }
+
+
+    // Response body of an API request. Category listings, extracts and category info are taken from
+    // the response cache if it is on, and responses fetched from the API are stored there
+    private InputStream openResponse(String url, CrawlMetrics.RequestType requestType) throws IOException,
+            InterruptedException {
+        return openResponse(url, requestType, false);
+    }
+
+    // Refreshed response is fetched from the API even if the cache has one, e.g. extracts of changed pages
+    private InputStream openResponse(String url, CrawlMetrics.RequestType requestType, boolean refresh)
+            throws IOException, InterruptedException {
+        ResponseCache responseCache = requestType == CrawlMetrics.RequestType.INFO ? null : Crawler.getResponseCache();
+        if (responseCache != null && !refresh) {
+            InputStream cached = responseCache.get(url);
+            if (cached != null) {
+                Crawler.getMetrics().cacheHit();
+                return cached;
+            }
+            Crawler.getMetrics().cacheMissed();
+        }
+
+        ApiClient.Response response = Crawler.getApiClient(wiki).execute(new HttpGet(url), requestType);
+        try {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new IOException("Bad response status: " + response.getStatusLine() + " URL: " + url);
+            }
+            if (response.getFirstHeader("MediaWiki-API-Error") != null) {
+                throw new IOException("API error: " + response.getFirstHeader("MediaWiki-API-Error").getValue() +
+                        " URL: " + url);
+            }
+            InputStream content = new FilterInputStream(response.getContent()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        response.close();
+                    }
+                }
+            };
+            // Body goes to the cache as it is parsed, so a large response is never held in memory whole
+            return responseCache == null ? content : responseCache.tee(url, content);
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            throw e;
+        }
+    }
+
+
+    // Error object of a response which came without the MediaWiki-API-Error header. The request failed like one
+    // the API client rejected, so the category is not completed
+    private IOException apiError(JsonParser parser, String url, CrawlMetrics.RequestType requestType)
+            throws IOException {
+        String code = "";
+        String info = "";
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals("code")) {
+                code = parser.getText();
+            } else if (field.equals("info")) {
+                info = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        String reason = "API error: " + code + " " + info;
+        Crawler.getMetrics().requestFailed();
+        Crawler.getFailedRequestLog().failed(requestType, 1, reason, url);
+        return new IOException(reason + " URL: " + url);
+    }
+
+
+    // Read value of continuation parameter from "continue" object, empty if absent
+    private static String readContinue(JsonParser parser, String parameterName) throws IOException {
+        String value = "";
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals(parameterName)) {
+                value = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return value;
+    }
+
+
+    // All values of "continue" object, empty if there is nothing more
+    private static Map<String, String> readContinueParams(JsonParser parser) throws IOException {
+        Map<String, String> params = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            params.put(field, parser.getText());
+        }
+        return params;
+    }
+
+
+    // Page object of a pages response. Article is null if the object has no extract
+    static class ExtractedPage {
+        private String title;
+        private long revisionId;
+        private int pageLength = -1;
+        private ArticleStorage.PendingArticle article;
+
+        int getPageLength() {
+            return pageLength;
+        }
+    }
+
+    // Streams extract of a page object straight into the storage. Package-private for benchmarks
+    static ExtractedPage readPage(JsonParser parser, ArticleStorage storage, Path directory, String fileId)
+            throws IOException {
+        ExtractedPage page = new ExtractedPage();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals("title")) {
+                page.title = parser.getText();
+            } else if (field.equals("lastrevid")) {
+                page.revisionId = parser.getLongValue();
+            } else if (field.equals("extract")) {
+                page.article = storage.create(directory, fileId);
+                try (Writer writer = page.article.getWriter()) {
+                    page.pageLength = parser.getText(writer);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return page;
+    }
+
+    // Saves extract of a page object, returns false if the object has no extract
+    private boolean readPage(JsonParser parser, String pageId, int i) throws IOException {
+        String fileId = filenamePrefix + String.format("%03d", i);
+        ExtractedPage page = readPage(parser, Crawler.getStorage(), path, fileId);
+        if (page.article == null) {
+            return false;
+        }
+
+        articleDownloaded(page.article, pageId, page.revisionId, fileId, page.title, page.pageLength);
+        return true;
+    }
+
+
+    private void articleDownloaded(ArticleStorage.PendingArticle article, String pageId, long revisionId,
+                                   String fileId, String title, int pageLength) throws IOException {
+        // File name depends on title, which is not guaranteed to come before extract
+        String relativePath = article.commit(title);
+        logger.debug("Saved {} to {}", fileId, relativePath);
+        Crawler.getMetrics().pageDownloaded();
+
+        pageSaved(pageId, revisionId, fileId, title, pageLength, relativePath);
+    }
+
+
+    // Fetch extracts for a batch of pages (page id -> file index) with a single multi-id query,
+    // following excontinue while the API returns the extracts in parts. Ids of saved pages are added to savedPageIds.
+    // A batch with pages changed since the previous run is not taken from the response cache
+    private void downloadPageBatch(Map<String, Integer> pageIdIndexMap, boolean changed, Set<String> savedPageIds)
+            throws IOException, InterruptedException {
+        List<String> pageIds = new ArrayList<>(pageIdIndexMap.keySet());
+        String excontinue = "";
+        boolean allDataGot = false;
+
+        logger.debug("Downloading {} pages global: {} local: {} level: {}", pageIds.size(), globalCategory, category,
+                subcategoryLevel);
+
+        while (!allDataGot) {
+            String pagesUrl = makePagesUrl(pageIds, excontinue);
+            logger.debug(pagesUrl);
+
+            excontinue = "";
+            try (InputStream content = openResponse(pagesUrl, CrawlMetrics.RequestType.PAGES, changed);
+                 JsonParser parser = jsonFactory.createParser(content)) {
+                parser.nextToken();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if (field.equals("continue")) {
+                        excontinue = readContinue(parser, "excontinue");
+                    } else if (field.equals("error")) {
+                        throw apiError(parser, pagesUrl, CrawlMetrics.RequestType.PAGES);
+                    } else if (field.equals("query")) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String queryField = parser.getCurrentName();
+                            parser.nextToken();
+                            if (!queryField.equals("pages")) {
+                                parser.skipChildren();
+                                continue;
+                            }
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                String pageId = parser.getCurrentName();
+                                parser.nextToken();
+                                if (!pageIdIndexMap.containsKey(pageId) || savedPageIds.contains(pageId)) {
+                                    parser.skipChildren();
+                                } else if (readPage(parser, pageId, pageIdIndexMap.get(pageId))) {
+                                    savedPageIds.add(pageId);
+                                }
+                            }
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            allDataGot = excontinue.isEmpty();
+        }
+
+        if (savedPageIds.size() != pageIds.size()) {
+            List<String> missingPageIds = new ArrayList<>(pageIds);
+            missingPageIds.removeAll(savedPageIds);
+            logger.error("No extract returned for page ids {} in category {}", missingPageIds, category);
+        }
+    }
+
+
+    // Current revision ids of pages, queried in bulk with prop=info
+    private Map<String, Long> fetchRevisionIds(List<String> pageIds) throws IOException, InterruptedException {
+        Map<String, Long> revisionIds = new HashMap<>();
+
+        for (int start = 0; start < pageIds.size(); start += infoBatchSize) {
+            String infoUrl = makeInfoUrl(pageIds.subList(start, Math.min(start + infoBatchSize, pageIds.size())));
+            logger.debug(infoUrl);
+
+            try (InputStream content = openResponse(infoUrl, CrawlMetrics.RequestType.INFO);
+                 JsonParser parser = jsonFactory.createParser(content)) {
+                parser.nextToken();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if (field.equals("error")) {
+                        throw apiError(parser, infoUrl, CrawlMetrics.RequestType.INFO);
+                    }
+                    if (!field.equals("query")) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String queryField = parser.getCurrentName();
+                        parser.nextToken();
+                        if (!queryField.equals("pages")) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String pageId = parser.getCurrentName();
+                            parser.nextToken();
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                String pageField = parser.getCurrentName();
+                                parser.nextToken();
+                                if (pageField.equals("lastrevid")) {
+                                    revisionIds.put(pageId, parser.getLongValue());
+                                } else {
+                                    parser.skipChildren();
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return revisionIds;
+    }
+
+
+    // Keep file of a page not changed since the previous run. If its file id changed the file is linked
+    // to the new name, since the old one may be reused by another category, and is deleted as stale at the end
+    private boolean reusePage(String pageId, String title, int i, Long revisionId) throws IOException {
+        PageIndex.Entry previousEntry = Crawler.getPageIndex().getPreviousEntry(wiki.key(pageId));
+        if (revisionId == null || previousEntry == null || previousEntry.getRevisionId() != revisionId) {
+            return false;
+        }
+        String fileId = filenamePrefix + String.format("%03d", i);
+        String relativePath = Crawler.getStorage().reuse(previousEntry.getRelativePath(), path, fileId, title);
+        if (relativePath == null) {
+            return false;
+        }
+        logger.debug("Page not changed: {} file id: {}", title, fileId);
+        Crawler.getMetrics().pageReused();
+
+        pageSaved(pageId, revisionId, fileId, title, previousEntry.getPageLength(), relativePath);
+        return true;
+    }
+
+
+    // Hand a batch of pages over to the page fetchers
+    private void schedulePageBatch(Map<String, Integer> pageIdIndexMap, boolean changed) {
+        Crawler.getScheduler().schedulePages(taskParameters, () -> {
+            Set<String> savedPageIds = new HashSet<>();
+            boolean succeeded = false;
+            try {
+                downloadPageBatch(pageIdIndexMap, changed, savedPageIds);
+                succeeded = true;
+                return savedPageIds.size();
+            } finally {
+                // Pages which were not saved are given back, so another category listing them can take them over
+                for (String pageId : pageIdIndexMap.keySet()) {
+                    if (!savedPageIds.contains(pageId)) {
+                        Crawler.releasePage(wiki.pageKey(pageId));
+                    }
+                }
+                Crawler.getBudgets().release(levelKey, categoryPages, pageIdIndexMap.size() - savedPageIds.size());
+                if (!succeeded) {
+                    failed = true;
+                }
+            }
+        });
+    }
+
+
+    // Claimed page which could not be saved
+    private void releasePage(String pageId) {
+        Crawler.releasePage(wiki.pageKey(pageId));
+        Crawler.getBudgets().release(levelKey, categoryPages, 1);
+    }
 
-    private void downloadPage(String pageName, String pageId, int i) throws IOException, ParseException {
-        logger.info("Downloading page: " + pageName + " global: " + globalCategory + " local: " + category + " level: " + subcategoryLevel);
 
-        // Create directory if not exists
-        if (!Files.exists(path)){
+    // Create directory if not exists, packed articles need no directory of their own
+    private void createCategoryDirectory() {
+        if (!Main.isUsePackStorage() && !Files.exists(path)){
             try {
                 Files.createDirectories(path);
             } catch (IOException e){
                 e.printStackTrace();
             }
         }
+    }
 
-        String pageUrl = makePageUrl(pageId);
-        logger.debug(pageUrl);
 
-        HttpGet get = new HttpGet(pageUrl);
-        HttpResponse response = httpClient.execute(get);
+    // Claims listed pages which no category claimed before, hands them over to the page fetchers and enqueues
+    // subcategories not visited yet. Categories of a level claim one by one in order of their prefixes.
+    // Pages saved before resume are only counted, pages over the page budget are skipped and pages claimed
+    // by another category are referenced once their files are saved
+    @Override
+    public void claimPages() {
+        try {
+            Crawler.getBudgets().setListed(levelKey, categoryPages, listedPages, 0);
+            if (failed) {
+                discardExtractedPages();
+                return;
+            }
+            claimListedPages();
+        } catch (IOException | RuntimeException e) {
+            stepFailed(e);
+        }
+    }
 
-        if (response.getStatusLine().getStatusCode() == 200) {
-            HttpEntity entity = response.getEntity();
-            String jsonStr = EntityUtils.toString(entity);
-            JSONParser jsonParser = new JSONParser();
-            JSONObject jsonObject = (JSONObject) jsonParser.parse(jsonStr);
-            JSONObject queryObject = (JSONObject) jsonObject.get("query");
-            JSONObject pages = (JSONObject) queryObject.get("pages");
-            JSONObject page = (JSONObject) pages.get(pageId);
-            String title = (String) page.get("title");
-            String text = (String) page.get("extract");
+    private void claimListedPages() throws IOException {
+        PageBudgets budgets = Crawler.getBudgets();
+        Map<String, Integer> claimedPages = new LinkedHashMap<>();
+        for (int i = 0; i < listedPageIds.size(); i++) {
+            String pageId = listedPageIds.get(i);
+            long pageKey = wiki.pageKey(pageId);
+            String originalFileId = Crawler.getPageFileId(pageKey);
+            if (Crawler.getJournal().isPageSaved(filenamePrefix, pageKey)) {
+                savedPagesCount.incrementAndGet();
+            } else if (originalFileId != null && Crawler.isPageFileSaved(pageKey)) {
+                pageReferenced(pageId, fileId(i), listedTitles.get(i), originalFileId);
+            } else if (originalFileId != null) {
+                pendingReferences.add(i);
+            } else if (budgets.reserve(levelKey, categoryPages, 1) == 0) {
+                skippedCount++;
+            } else {
+                Crawler.claimPage(pageKey, fileId(i));
+                claimedPages.put(pageId, i);
+            }
+        }
+        if (skippedCount > 0) {
+            logger.debug("Page budget used up: {} pages of category {} skipped", skippedCount, category);
+        }
 
-            byte[] dataToWrite = text.getBytes();
+        savePages(claimedPages);
+        enqueueSubcategories();
+    }
 
-            String fileId = filenamePrefix + String.format("%03d", i);
 
-            logger.info("Saving " + fileId + ".txt" + " to " + Paths.get(path.toString()));
-            Files.write(Paths.get(path.toString(), fileId + "_" +
-                    title.replaceAll("[\\\\/]", " ") + ".txt"), dataToWrite);
+    // Saves pages claimed by this category: extracts which came with the listing, files not changed
+    // since the previous run, and the rest in page batches. Extracts of pages owned by others are dropped
+    private void savePages(Map<String, Integer> claimedPages) throws IOException {
+        Map<String, Integer> pageIdIndexMap = new LinkedHashMap<>();
+        // Cached extracts of an indexed page which is not reused are older than its current revision
+        boolean changed = false;
+        for (Map.Entry<String, Integer> claimedPage : claimedPages.entrySet()) {
+            String pageId = claimedPage.getKey();
+            int i = claimedPage.getValue();
+            try {
+                ExtractedPage page = extractedPages.remove(pageId);
+                if (page != null) {
+                    articleDownloaded(page.article, pageId, page.revisionId, fileId(i), page.title, page.pageLength);
+                    continue;
+                }
+                if (reusePage(pageId, listedTitles.get(i), i, revisionIds.get(pageId))) {
+                    continue;
+                }
+            } catch (IOException e) {
+                logger.error("Cannot save page {} of category {}", wiki.key(pageId), category);
+                logger.error(e);
+                failed = true;
+                releasePage(pageId);
+                continue;
+            }
+            pageIdIndexMap.put(pageId, i);
+            changed |= revisionIds.containsKey(pageId);
+            if (pageIdIndexMap.size() == Main.getPageBatchSize()) {
+                schedulePageBatch(pageIdIndexMap, changed);
+                pageIdIndexMap = new LinkedHashMap<>();
+                changed = false;
+            }
+        }
+        if (!pageIdIndexMap.isEmpty()) {
+            schedulePageBatch(pageIdIndexMap, changed);
+        }
+        discardExtractedPages();
+    }
 
-            String url = "https://ru.wikipedia.org/wiki/" + URLEncoder.encode(title, "UTF-8")
-                    .replaceAll("\\+", "_");
-            String categoryNumber = fileId.split("_")[0];
-            String pageLength = String.valueOf(text.length());
 
+    private void discardExtractedPages() throws IOException {
+        for (ExtractedPage page : extractedPages.values()) {
+            page.article.discard();
+        }
+        extractedPages.clear();
+    }
 
-            csvData.append(String.join(",",
-                    quoteWrapper(fileId),
-                    quoteWrapper(title),
-                    quoteWrapper(url),
-                    categoryNumber,
-                    String.valueOf(subcategoryLevel),
-                    pageLength));
-            csvData.append("\n");
 
-        } else {
-            logger.error("Bad response status:\n URL:\n " + pageUrl + "\nStatus:\n" + response.getStatusLine());
+    // Called when all page batches of the level are finished. Writes references to pages whose files are saved.
+    // A page its owner could not save is claimed by this category if the page budget allows and downloaded,
+    // pages still downloaded by their owners wait for the next call
+    @Override
+    public void referencePages() {
+        if (failed) {
+            // Category is rerun on resume, its references are written then
+            pendingReferences.clear();
+            return;
+        }
+        PageBudgets budgets = Crawler.getBudgets();
+        Map<String, Integer> claimedPages = new LinkedHashMap<>();
+        try {
+            for (Iterator<Integer> pending = pendingReferences.iterator(); pending.hasNext(); ) {
+                int i = pending.next();
+                String pageId = listedPageIds.get(i);
+                long pageKey = wiki.pageKey(pageId);
+                String originalFileId = Crawler.getPageFileId(pageKey);
+                if (originalFileId != null && !Crawler.isPageFileSaved(pageKey)) {
+                    continue;
+                }
+                pending.remove();
+                if (originalFileId != null) {
+                    pageReferenced(pageId, fileId(i), listedTitles.get(i), originalFileId);
+                } else if (budgets.reserve(levelKey, categoryPages, 1) == 0) {
+                    skippedCount++;
+                } else {
+                    Crawler.claimPage(pageKey, fileId(i));
+                    claimedPages.put(pageId, i);
+                }
+            }
+            if (!claimedPages.isEmpty()) {
+                logger.debug("Taking over {} pages not saved by their owners: {}", claimedPages.size(), category);
+                savePages(claimedPages);
+            }
+        } catch (IOException | RuntimeException e) {
+            stepFailed(e);
+            pendingReferences.clear();
+        }
+    }
+
+    @Override
+    public boolean hasPendingReferences() {
+        return !pendingReferences.isEmpty();
+    }
+
+
+    // Category is completed when it is listed, claimed, and all its pages are saved or referenced.
+    // Failed category is not journaled as completed, so it is rerun on resume
+    @Override
+    public void complete() {
+        int count = savedPagesCount.get();
+        logger.debug("Category finished: {} pages: {} level pages: {}", category, count,
+                Crawler.getBudgets().getLevelCounts().get(levelKey));
+
+        if (!failed) {
+            try {
+                Crawler.getJournal().taskCompleted(filenamePrefix, count);
+                return;
+            } catch (IOException e) {
+                logger.error(e);
+            }
+        }
+        logger.error("Category not completed: {}", category);
+        Crawler.categoryNotCompleted();
+    }
+
+
+    private void stepFailed(Exception e) {
+        logger.error("Task failed: {}", category);
+        logger.error(e);
+        failed = true;
+    }
+
+
+    // Listed articles and subcategories, title -> page id
+    static void readCategoryMembers(JsonParser parser, Map<String, String> pageNameIdMap,
+                                    Map<String, String> subcategoryNameIdMap) throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String title = null;
+            String pageId = null;
+            String type = null;
+            int ns = -1;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "title":
+                        title = parser.getText();
+                        break;
+                    case "pageid":
+                        pageId = parser.getText();
+                        break;
+                    case "type":
+                        type = parser.getText();
+                        break;
+                    case "ns":
+                        ns = parser.getIntValue();
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+
+            if ("page".equals(type) && ns == 0) {
+                pageNameIdMap.put(title, pageId);
+            } else if ("subcat".equals(type)) {
+                subcategoryNameIdMap.put(title, pageId);
+            }
         }
     }
 
 
+    // Lists the category, its pages are claimed and its subcategories enqueued when the whole level is listed.
+    // Returns number of listed pages
     @Override
-    public String call() throws IOException, ParseException, InterruptedException {
+    public Integer call() throws IOException, InterruptedException {
+        boolean succeeded = false;
+        try {
+            listCategory();
+            succeeded = true;
+            return listedPageIds.size();
+        } finally {
+            if (!succeeded) {
+                failed = true;
+            }
+        }
+    }
+
+
+    // Pages of the category and subcategory titles from categoryinfo (pages, subcats), queried in bulk
+    private Map<String, int[]> fetchCategorySizes(List<String> categoryNames) throws IOException,
+            InterruptedException {
+        Map<String, int[]> categorySizes = new HashMap<>();
+
+        for (int start = 0; start < categoryNames.size(); start += infoBatchSize) {
+            String categoryInfoUrl = makeCategoryInfoUrl(categoryNames.subList(start,
+                    Math.min(start + infoBatchSize, categoryNames.size())));
+            logger.debug(categoryInfoUrl);
+
+            try (InputStream content = openResponse(categoryInfoUrl, CrawlMetrics.RequestType.CATEGORY_INFO);
+                 JsonParser parser = jsonFactory.createParser(content)) {
+                parser.nextToken();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if (field.equals("error")) {
+                        throw apiError(parser, categoryInfoUrl, CrawlMetrics.RequestType.CATEGORY_INFO);
+                    }
+                    if (!field.equals("query")) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String queryField = parser.getCurrentName();
+                        parser.nextToken();
+                        if (!queryField.equals("pages")) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            parser.nextToken();
+                            readCategoryInfo(parser, categorySizes);
+                        }
+                    }
+                }
+            }
+        }
+        return categorySizes;
+    }
+
+
+    private static void readCategoryInfo(JsonParser parser, Map<String, int[]> categorySizes) throws IOException {
+        String title = null;
+        int[] size = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals("title")) {
+                title = parser.getText();
+            } else if (field.equals("categoryinfo")) {
+                size = new int[2];
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String infoField = parser.getCurrentName();
+                    parser.nextToken();
+                    if (infoField.equals("pages")) {
+                        size[0] = parser.getIntValue();
+                    } else if (infoField.equals("subcats")) {
+                        size[1] = parser.getIntValue();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (title != null && size != null) {
+            categorySizes.put(title, size);
+        }
+    }
+
+
+    // Enqueue subcategories not visited yet, in order of their titles. With category info empty ones are skipped
+    // and the others carry their size for the frontier
+    private void enqueueSubcategories() throws IOException {
+        List<String> subcategories = new ArrayList<>(subcategoryNameIdMap.keySet());
+        subcategories.sort(null);
+        for (int i = 0; i < subcategories.size(); i++) {
+            String subcat = subcategories.get(i);
+            // Category graph has cycles and shared subcategories, each category is crawled once
+            if (!Crawler.markSubcategoryVisited(wiki, subcat, subcategoryNameIdMap.get(subcat))) {
+                logger.debug("Category already visited: {}", subcat);
+                continue;
+            }
+            int[] size = categorySizes.get(subcat);
+            if (size != null && size[0] == 0 && size[1] == 0) {
+                logger.debug("Category is empty: {}", subcat);
+                continue;
+            }
+
+            String newPrefix = filenamePrefix + String.format("%03d", i) + "_";
+            Path newPath = Paths.get(path.toString(), newPrefix + wiki.stripNamespace(subcat));
+
+            TaskParameters subcategoryTask = new TaskParameters(wiki, subcat, globalCategory, subcategoryLevel+1,
+                    newPath, newPrefix);
+            if (size != null) {
+                subcategoryTask.setEstimatedPages(size[0]);
+            }
+            subcategoryTask.setCategoryPageId(subcategoryNameIdMap.get(subcat));
+            Crawler.addTaskToQueue(subcategoryTask);
+        }
+    }
+
+
+    // Listed pages which no category has claimed yet, so they would take units of the page budget
+    private int countUnclaimedPages(Collection<String> pageIds) {
+        int count = 0;
+        for (String pageId : pageIds) {
+            if (Crawler.getPageFileId(wiki.pageKey(pageId)) == null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    private void listCategory() throws IOException, InterruptedException {
         HashMap<String, String> pageNameIdMap = new HashMap<>();
-        List<String> subcategories = new ArrayList<>();
         String cmcontinue = "";
         boolean allDataGot = false;
-        int i;
+        PageBudgets budgets = Crawler.getBudgets();
+        categoryPages.set(Crawler.getJournal().getSavedPageCount(filenamePrefix));
 
-        // Check if downloaded pages count for previous level of same global category is less than needed
-        int previousLevelCount = Crawler.getLevelCounts().getOrDefault(globalCategory + (subcategoryLevel-1), 0);
-        if (previousLevelCount > Main.maxPagesPerLevel){
-            logger.debug("Count for category : " + globalCategory + " and level " + (subcategoryLevel-1) +
-                    " is " + previousLevelCount);
-            return "";
+        // Next level is crawled only if the previous one, finished by now, did not get enough pages.
+        // Nothing is listed if no page can be taken on this level
+        long previousLevelKey = PageBudgets.levelKey(taskParameters.getGlobalCategoryNumber(), subcategoryLevel - 1);
+        if (budgets.isLevelUsedUp(previousLevelKey) || budgets.wouldUseUp(levelKey)) {
+            logger.debug("Page budget used up, category not listed: {} level: {}", category, subcategoryLevel);
+            return;
+        }
+        if (Main.isUseGeneratorListing()) {
+            listCategoryWithExtracts();
+            return;
         }
 
         while (!allDataGot) {
 
             String categoryUrl = makeCategoryUrl(category, cmcontinue);
             logger.debug(categoryUrl);
-            HttpGet get = new HttpGet(categoryUrl);
+            String nextCmcontinue = "";
+            try (InputStream content = openResponse(categoryUrl, CrawlMetrics.RequestType.CATEGORY);
+                 JsonParser parser = jsonFactory.createParser(content)) {
+                parser.nextToken();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if (field.equals("continue")) {
+                        nextCmcontinue = readContinue(parser, "cmcontinue");
+                    } else if (field.equals("error")) {
+                        throw apiError(parser, categoryUrl, CrawlMetrics.RequestType.CATEGORY);
+                    } else if (field.equals("query")) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String queryField = parser.getCurrentName();
+                            parser.nextToken();
+                            if (queryField.equals("categorymembers")) {
+                                readCategoryMembers(parser, pageNameIdMap, subcategoryNameIdMap);
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            cmcontinue = nextCmcontinue;
+            allDataGot = cmcontinue.isEmpty();
+
+            // Rest of the listing is not needed when the pages listed so far by the categories of the level
+            // fill up what is left of the level or crawl budget, the next level will not be crawled then
+            // and needs no subcategories
+            budgets.setListed(levelKey, categoryPages, listedPages, countUnclaimedPages(pageNameIdMap.values()));
+            if (!allDataGot && budgets.wouldUseUp(levelKey)) {
+                logger.debug("Page budget filled up, rest of category not listed: {}", category);
+                allDataGot = true;
+            }
+        }
+
+        if (pageNameIdMap.isEmpty() && subcategoryNameIdMap.isEmpty()) {
+            nothingListed();
+            return;
+        }
 
-            HttpResponse response = httpClient.execute(get);
+        // Page file index is position in the sorted list, pages saved before resume keep theirs
+        listedTitles.addAll(pageNameIdMap.keySet());
+        listedTitles.sort(null);
+        for (String title : listedTitles) {
+            listedPageIds.add(pageNameIdMap.get(title));
+        }
+        createCategoryDirectory();
+        fetchListingInfo();
+    }
 
-            if (response.getStatusLine().getStatusCode() == 200) {
-                HttpEntity entity = response.getEntity();
-                String jsonStr = EntityUtils.toString(entity);
 
-                JSONParser jsonParser = new JSONParser();
-                JSONObject jsonObject = (JSONObject) jsonParser.parse(jsonStr);
-                JSONObject queryObject = (JSONObject) jsonObject.get("query");
-                JSONArray categoryMembers = (JSONArray) queryObject.get("categorymembers");
-                if (jsonObject.containsKey("continue")) {
-                    JSONObject continueObj = (JSONObject) jsonObject.get("continue");
-                    cmcontinue = (String) continueObj.get("cmcontinue");
+    // Revisions of listed pages and sizes of listed subcategories are fetched with the listing,
+    // so claiming the level needs no requests
+    private void fetchListingInfo() throws IOException, InterruptedException {
+        // In incremental mode only pages changed since the previous run are downloaded
+        if (Main.isIncremental() && Crawler.getPageIndex().hasPreviousEntries()) {
+            List<String> indexedPageIds = new ArrayList<>();
+            for (String pageId : listedPageIds) {
+                long pageKey = wiki.pageKey(pageId);
+                if (extractedPages.containsKey(pageId) || Crawler.getPageFileId(pageKey) != null
+                        || Crawler.getPageIndex().getPreviousEntry(wiki.key(pageId)) == null) {
+                    continue;
+                }
+                if (listedRevisionIds.containsKey(pageId)) {
+                    revisionIds.put(pageId, listedRevisionIds.get(pageId));
                 } else {
-                    allDataGot = true;
-                }
-
-                i = 0;
-                for (JSONObject categoryMember : (Iterable<JSONObject>) categoryMembers) {
-                    String type = (String) categoryMember.get("type");
-                    long ns = (long) categoryMember.get("ns");
-                    if (type.equals("page") && ns == 0) {
-                        pageNameIdMap.put((String) categoryMember.get("title"),
-                                String.valueOf((long) categoryMember.get("pageid")));
-                        i++;
-                    } else if (type.equals("subcat")) {
-                        subcategories.add((String) categoryMember.get("title"));
+                    indexedPageIds.add(pageId);
+                }
+            }
+            revisionIds.putAll(fetchRevisionIds(indexedPageIds));
+        }
+
+        if (Main.isUseCategoryInfo()) {
+            List<String> subcategories = new ArrayList<>();
+            for (Map.Entry<String, String> subcategory : subcategoryNameIdMap.entrySet()) {
+                if (!Crawler.isSubcategoryVisited(wiki, subcategory.getKey(), subcategory.getValue())) {
+                    subcategories.add(subcategory.getKey());
+                }
+            }
+            subcategories.sort(null);
+            if (!subcategories.isEmpty()) {
+                categorySizes = fetchCategorySizes(subcategories);
+            }
+        }
+    }
+
+
+    // Empty listing may mean a wrong category name in the config. The category is completed with no pages,
+    // the rest of the crawl goes on
+    private void nothingListed() {
+        logger.warn("No pages or subcategories listed, check category name: {}", wiki.key(category));
+    }
+
+
+    // Lists the category with generator=categorymembers and prop=extracts|info, so articles come with
+    // their extracts without separate page requests. Extracts of articles no earlier category claimed are
+    // written as the listing arrives and committed if the category gets the articles when its level is claimed.
+    // Every extract takes a request of its own, so they are followed only while every listed article is wanted:
+    // once an article is claimed by another category, saved before resume or not changed since the previous run,
+    // the rest is listed without extracts and downloaded in page batches. Articles are numbered in the order
+    // they are listed
+    private void listCategoryWithExtracts() throws IOException, InterruptedException {
+        // Page id -> file index of listed articles
+        Map<String, Integer> pageIndexes = new HashMap<>();
+        Map<String, String> continueParams = new LinkedHashMap<>();
+        boolean allDataGot = false;
+        boolean withExtracts = true;
+        // Articles listed from this index on wait for extracts of the current members
+        int membersStart = 0;
+        PageBudgets budgets = Crawler.getBudgets();
+        createCategoryDirectory();
+
+        while (!allDataGot) {
+            if (!continueParams.containsKey("excontinue")) {
+                membersStart = listedPageIds.size();
+            }
+            String generatorUrl = makeGeneratorUrl(category, continueParams, withExtracts);
+            logger.debug(generatorUrl);
+            CrawlMetrics.RequestType requestType = withExtracts ? CrawlMetrics.RequestType.CATEGORY_PAGES
+                    : CrawlMetrics.RequestType.CATEGORY;
+            Map<String, String> nextContinueParams = new LinkedHashMap<>();
+            // Revisions come with the listing, so a cached listing cannot show changed pages
+            try (InputStream content = openResponse(generatorUrl, requestType, Main.isIncremental());
+                 JsonParser parser = jsonFactory.createParser(content)) {
+                parser.nextToken();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if (field.equals("continue")) {
+                        nextContinueParams = readContinueParams(parser);
+                    } else if (field.equals("error")) {
+                        throw apiError(parser, generatorUrl, requestType);
+                    } else if (field.equals("query")) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String queryField = parser.getCurrentName();
+                            parser.nextToken();
+                            if (!queryField.equals("pages")) {
+                                parser.skipChildren();
+                                continue;
+                            }
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                String pageId = parser.getCurrentName();
+                                parser.nextToken();
+                                readMember(parser, pageId, pageIndexes);
+                            }
+                        }
+                    } else {
+                        parser.skipChildren();
                     }
                 }
-            } else {
-                logger.error("Bad response status:\n" + response.getStatusLine());
+            }
+            continueParams = nextContinueParams;
+            allDataGot = continueParams.isEmpty();
+
+            // Generator stays on the current members without excontinue, so they are listed once more
+            if (withExtracts && continueParams.containsKey("excontinue") && hasUnwantedArticles(membersStart)) {
+                logger.debug("Rest of category listed without extracts: {}", category);
+                withExtracts = false;
+                continueParams.remove("excontinue");
+            }
+
+            // Rest of the listing is not needed when the articles listed so far by the categories of the level
+            // fill up what is left of the level or crawl budget. Extracts of listed articles are still followed
+            budgets.setListed(levelKey, categoryPages, listedPages, countUnclaimedPages(listedPageIds));
+            if (!allDataGot && (!withExtracts || countWaitingExtracts(membersStart) == 0)
+                    && budgets.wouldUseUp(levelKey)) {
+                logger.debug("Page budget filled up, rest of category not listed: {}", category);
+                allDataGot = true;
             }
         }
 
-        if (pageNameIdMap.isEmpty() && subcategories.isEmpty()){
-            logger.error("No data returned from query\n" + "Check category name: " + category);
-            Crawler.deleteDataDirectory(Main.getDataDirectoryPath());
-            logger.info("Deleted directory " + Main.getDataDirectoryPath().toString());
-            System.exit(1);
+        if (pageIndexes.isEmpty() && subcategoryNameIdMap.isEmpty()) {
+            nothingListed();
+            return;
         }
+        fetchListingInfo();
+    }
 
-        List<String> pageNames = new ArrayList<>(pageNameIdMap.keySet());
-        pageNames.sort(null);
-        subcategories.sort(null);
 
-        i = 0;
-        for (String pageName : pageNames){
-            downloadPage(pageName, pageNameIdMap.get(pageName), i);
-            TimeUnit.SECONDS.sleep(Main.getRequestDelaySeconds());
-            i++;
+    // Article whose extract is worth a request: no category claimed it, it was not saved before resume
+    // and it changed since the previous run
+    private boolean isArticleWanted(String pageId) {
+        long pageKey = wiki.pageKey(pageId);
+        if (Crawler.getJournal().isPageSaved(filenamePrefix, pageKey) || Crawler.getPageFileId(pageKey) != null) {
+            return false;
         }
+        PageIndex.Entry previousEntry = Crawler.getPageIndex().getPreviousEntry(wiki.key(pageId));
+        Long revisionId = listedRevisionIds.get(pageId);
+        return previousEntry == null || revisionId == null || previousEntry.getRevisionId() != revisionId;
+    }
 
+    // Extracts of wanted articles are written during the listing
+    private boolean isExtractWanted(String pageId) {
+        return !extractedPages.containsKey(pageId) && isArticleWanted(pageId);
+    }
 
-        int currentLevelCount = Crawler.getLevelCounts().getOrDefault(globalCategory + subcategoryLevel, 0);
-        Crawler.addLevelCount(globalCategory + subcategoryLevel, currentLevelCount + i);
-        logger.debug("Current level cnt: " + currentLevelCount + i);
+    private boolean hasUnwantedArticles(int start) {
+        for (String pageId : listedPageIds.subList(start, listedPageIds.size())) {
+            if (!extractedPages.containsKey(pageId) && !isArticleWanted(pageId)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        i = 0;
-        for (String subcat: subcategories){
-            Path newPath = Paths.get(path.toString(), filenamePrefix + String.format("%03d", i) + "_" +
-                    subcat.replace("Категория:", ""));
+    private int countWaitingExtracts(int start) {
+        int count = 0;
+        for (String pageId : listedPageIds.subList(start, listedPageIds.size())) {
+            if (isExtractWanted(pageId)) {
+                count++;
+            }
+        }
+        return count;
+    }
 
-            String newPrefix = filenamePrefix + String.format("%03d", i) + "_";
 
-            Crawler.addTaskToQueue(new TaskParameters(subcat, globalCategory, subcategoryLevel+1, newPath, newPrefix));
-            i++;
+    // Member object of a generator response. An article gets its file index when it is first listed,
+    // its extract may come in a later response. Page id, namespace and title come before page properties
+    private void readMember(JsonParser parser, String pageId, Map<String, Integer> pageIndexes) throws IOException {
+        String title = null;
+        int ns = -1;
+        long revisionId = 0;
+        ExtractedPage page = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals("ns")) {
+                ns = parser.getIntValue();
+            } else if (field.equals("title")) {
+                title = parser.getText();
+            } else if (field.equals("lastrevid")) {
+                revisionId = parser.getLongValue();
+            } else if (field.equals("extract") && ns == 0) {
+                int i = memberListed(pageId, title, pageIndexes);
+                if (revisionId > 0) {
+                    listedRevisionIds.put(pageId, revisionId);
+                }
+                if (isExtractWanted(pageId)) {
+                    page = new ExtractedPage();
+                    page.article = Crawler.getStorage().create(path, fileId(i));
+                    try (Writer writer = page.article.getWriter()) {
+                        page.pageLength = parser.getText(writer);
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (ns == 14) {
+            subcategoryNameIdMap.put(title, pageId);
+            return;
+        }
+        if (ns != 0) {
+            return;
         }
+        memberListed(pageId, title, pageIndexes);
+        if (revisionId > 0) {
+            listedRevisionIds.put(pageId, revisionId);
+        }
+        if (page != null) {
+            page.title = title;
+            page.revisionId = revisionId;
+            extractedPages.put(pageId, page);
+        }
+    }
 
-        logger.debug("CSV: \n" + csvData.toString());
-        String key = globalCategory + subcategoryLevel;
-        List<String> currentRunningCats = Crawler.getCurrentProcessingLevels().get(key);
-        currentRunningCats.remove(category);
-        Crawler.addProcessingLevel(key, currentRunningCats);
-        logger.debug(currentRunningCats);
-        return csvData.toString();
+    // Article listed for the first time gets the next file index. Returns file index of the article
+    private int memberListed(String pageId, String title, Map<String, Integer> pageIndexes) {
+        Integer listedIndex = pageIndexes.get(pageId);
+        if (listedIndex != null) {
+            return listedIndex;
+        }
+        int i = pageIndexes.size();
+        pageIndexes.put(pageId, i);
+        listedPageIds.add(pageId);
+        listedTitles.add(title);
+        return i;
     }
 }
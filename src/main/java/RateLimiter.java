@@ -0,0 +1,108 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Token bucket shared by all workers.
+ * The rate is lowered and requests are paused when the API asks to slow down,
+ * then it grows back to the configured rate with every successful request.
+ */
+class RateLimiter {
+    private static final Logger logger = LogManager.getLogger(RateLimiter.class);
+
+    private static final double minPermitsPerSecond = 0.1;
+    // Part of configured rate restored by every successful request after back off
+    private static final double recoveryStep = 0.02;
+
+    private final double maxPermitsPerSecond;
+    private final double burst;
+    private final LongSupplier nanoClock;
+
+    // Guarded by this
+    private double permitsPerSecond;
+    private double availablePermits;
+    // May be in the future while requests are paused
+    private long lastRefillNanos;
+
+
+    // permitsPerSecond <= 0 disables limiting, only back off pauses are applied
+    RateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, System::nanoTime);
+    }
+
+    // Clock in nanoseconds is given by tests
+    RateLimiter(double permitsPerSecond, int burst, LongSupplier nanoClock) {
+        this.maxPermitsPerSecond = permitsPerSecond;
+        this.burst = Math.max(1, burst);
+        this.nanoClock = nanoClock;
+        this.permitsPerSecond = permitsPerSecond;
+        this.availablePermits = this.burst;
+        this.lastRefillNanos = nanoClock.getAsLong();
+    }
+
+
+    private boolean isUnlimited() {
+        return maxPermitsPerSecond <= 0;
+    }
+
+    private void refill(long nowNanos) {
+        if (nowNanos > lastRefillNanos) {
+            if (!isUnlimited()) {
+                double newPermits = (nowNanos - lastRefillNanos) / 1e9 * permitsPerSecond;
+                availablePermits = Math.min(burst, availablePermits + newPermits);
+            }
+            lastRefillNanos = nowNanos;
+        }
+    }
+
+
+    void acquire() throws InterruptedException {
+        long waitNanos = reserve();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    // Takes a permit, returns how long the caller has to wait before using it
+    synchronized long reserve() {
+        long nowNanos = nanoClock.getAsLong();
+        refill(nowNanos);
+        long waitNanos = Math.max(0, lastRefillNanos - nowNanos);
+        if (!isUnlimited()) {
+            availablePermits -= 1;
+            if (availablePermits < 0) {
+                waitNanos += (long) (-availablePermits / permitsPerSecond * 1e9);
+            }
+        }
+        return waitNanos;
+    }
+
+
+    synchronized void backOff(long pauseMs) {
+        long nowNanos = nanoClock.getAsLong();
+        refill(nowNanos);
+        lastRefillNanos = Math.max(lastRefillNanos, nowNanos + TimeUnit.MILLISECONDS.toNanos(pauseMs));
+        if (!isUnlimited()) {
+            permitsPerSecond = Math.max(minPermitsPerSecond, permitsPerSecond / 2);
+            availablePermits = Math.min(availablePermits, 0);
+            logger.warn("Requests paused for " + pauseMs + " ms, rate lowered to " + permitsPerSecond + " req/s");
+        } else {
+            logger.warn("Requests paused for " + pauseMs + " ms");
+        }
+    }
+
+
+    synchronized void onSuccess() {
+        if (!isUnlimited() && permitsPerSecond < maxPermitsPerSecond) {
+            refill(nanoClock.getAsLong());
+            permitsPerSecond = Math.min(maxPermitsPerSecond, permitsPerSecond + maxPermitsPerSecond * recoveryStep);
+        }
+    }
+
+    synchronized double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+}
@@ -0,0 +1,421 @@
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Cache of API response bodies kept between runs, keyed by the request url with parameters sorted
+ * and maxlag dropped, since it does not change the response.
+ * Every response is a gzip file named by the SHA-256 of its key, with the key and the time it was fetched
+ * in front of the body. Responses older than the time to live are fetched again. When the cache grows over
+ * its size, least recently used files are deleted; file modification time is the last use,
+ * so the order survives restarts. Recently used small responses are also kept in memory.
+ */
+class ResponseCache {
+    private static final Logger logger = LogManager.getLogger(ResponseCache.class);
+
+    private static final String partSuffix = ".part";
+
+    private static class DiskEntry {
+        private final Path path;
+        private final long size;
+
+        DiskEntry(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    private static class MemoryEntry {
+        private final byte[] body;
+        private final long fetchedAtMs;
+
+        MemoryEntry(byte[] body, long fetchedAtMs) {
+            this.body = body;
+            this.fetchedAtMs = fetchedAtMs;
+        }
+    }
+
+    private final Path directoryPath;
+    private final long ttlMs;
+    private final long maxDiskBytes;
+    private final long maxMemoryBytes;
+    private final LongSupplier clock;
+    // Not a monitor, so virtual threads waiting for the cache do not pin their carrier threads
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guarded by lock, in order of use, least recently used first
+    private final LinkedHashMap<String, DiskEntry> diskEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, MemoryEntry> memoryEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes;
+    private long memoryBytes;
+
+
+    ResponseCache(Path directoryPath, long ttlMs, long maxDiskBytes, long maxMemoryBytes) throws IOException {
+        this(directoryPath, ttlMs, maxDiskBytes, maxMemoryBytes, System::currentTimeMillis);
+    }
+
+    // Clock in milliseconds is given by tests
+    ResponseCache(Path directoryPath, long ttlMs, long maxDiskBytes, long maxMemoryBytes, LongSupplier clock)
+            throws IOException {
+        this.directoryPath = directoryPath;
+        this.ttlMs = ttlMs;
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.clock = clock;
+
+        Files.createDirectories(directoryPath);
+        loadEntries();
+    }
+
+
+    private void loadEntries() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        Map<Path, BasicFileAttributes> attributes = new LinkedHashMap<>();
+        Files.walkFileTree(directoryPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (file.getFileName().toString().endsWith(partSuffix)) {
+                    // Left by an interrupted write
+                    Files.deleteIfExists(file);
+                } else {
+                    paths.add(file);
+                    attributes.put(file, attrs);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        paths.sort(Comparator.comparing(path -> attributes.get(path).lastModifiedTime()));
+
+        for (Path path : paths) {
+            long size = attributes.get(path).size();
+            diskEntries.put(path.getFileName().toString(), new DiskEntry(path, size));
+            diskBytes += size;
+        }
+        evictFromDisk();
+        logger.info("Response cache in " + directoryPath.toString() + ": " + diskEntries.size() + " responses, " +
+                String.format("%.1f MB", diskBytes / 1024.0 / 1024.0));
+    }
+
+
+    // Request url with parameters sorted and maxlag dropped
+    static String normalize(String url) {
+        URI uri = URI.create(url);
+        List<NameValuePair> params = new ArrayList<>(URLEncodedUtils.parse(uri, StandardCharsets.UTF_8));
+        params.removeIf(param -> param.getName().equals("maxlag"));
+        params.sort(Comparator.comparing(NameValuePair::getName).thenComparing(NameValuePair::getValue));
+        return uri.getScheme() + "://" + uri.getRawAuthority() + uri.getRawPath() + "?" +
+                URLEncodedUtils.format(params, StandardCharsets.UTF_8);
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Two levels of directories, so none of them holds too many files
+    private Path getPath(String hash) {
+        return Paths.get(directoryPath.toString(), hash.substring(0, 2), hash);
+    }
+
+    private boolean isExpired(long fetchedAtMs) {
+        return ttlMs > 0 && clock.getAsLong() - fetchedAtMs > ttlMs;
+    }
+
+
+    // Cached response body of the request, null if it is not cached or expired. Small bodies are read
+    // and kept in memory, larger ones are read from the file as the caller goes
+    InputStream get(String url) throws IOException {
+        String key = normalize(url);
+        String hash = hash(key);
+
+        lock.lock();
+        try {
+            MemoryEntry memoryEntry = memoryEntries.get(hash);
+            if (memoryEntry != null) {
+                if (!isExpired(memoryEntry.fetchedAtMs)) {
+                    // Marks the file as recently used too
+                    diskEntries.get(hash);
+                    return new ByteArrayInputStream(memoryEntry.body);
+                }
+                memoryEntries.remove(hash);
+                memoryBytes -= memoryEntry.body.length;
+            }
+            if (diskEntries.get(hash) == null) {
+                return null;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Path path = getPath(hash);
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new GZIPInputStream(Files.newInputStream(path)));
+            String storedKey = input.readUTF();
+            long fetchedAtMs = input.readLong();
+            if (!storedKey.equals(key) || isExpired(fetchedAtMs)) {
+                input.close();
+                removeFromDisk(hash);
+                Files.deleteIfExists(path);
+                return null;
+            }
+            Files.setLastModifiedTime(path, FileTime.fromMillis(clock.getAsLong()));
+
+            byte[] start = input.readNBytes((int) getMaxMemoryBodySize() + 1);
+            if (start.length <= getMaxMemoryBodySize()) {
+                input.close();
+                keepInMemory(hash, start, fetchedAtMs);
+                return new ByteArrayInputStream(start);
+            }
+            return new SequenceInputStream(new ByteArrayInputStream(start), input);
+        } catch (NoSuchFileException e) {
+            removeFromDisk(hash);
+            return null;
+        } catch (IOException e) {
+            if (input != null) {
+                input.close();
+            }
+            logger.warn("Damaged cached response removed: " + path.toString());
+            removeFromDisk(hash);
+            Files.deleteIfExists(path);
+            return null;
+        }
+    }
+
+
+    // Response body read from the given stream, written to the cache as the caller reads it. When the stream
+    // is closed, the rest of the body is read and the response is cached; a body which could not be read
+    // to its end is not
+    InputStream tee(String url, InputStream content) throws IOException {
+        String key = normalize(url);
+        String hash = hash(key);
+        long fetchedAtMs = clock.getAsLong();
+
+        Path path = getPath(hash);
+        Files.createDirectories(path.getParent());
+        Path partPath = Paths.get(path.toString() + "." + Thread.currentThread().threadId() + partSuffix);
+        DataOutputStream output = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(partPath)));
+        output.writeUTF(key);
+        output.writeLong(fetchedAtMs);
+
+        return new FilterInputStream(content) {
+            // Copy of a small body for the memory cache, null once the body is too large
+            private ByteArrayOutputStream memoryCopy = new ByteArrayOutputStream();
+            private boolean failed;
+            private boolean closed;
+
+            @Override
+            public int read() throws IOException {
+                byte[] buffer = new byte[1];
+                int count = read(buffer, 0, 1);
+                return count < 0 ? -1 : buffer[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int count;
+                try {
+                    count = super.read(buffer, offset, length);
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+                if (count > 0) {
+                    copy(buffer, offset, count);
+                }
+                return count;
+            }
+
+            // Skipped bytes are read, so the cached body has them
+            @Override
+            public long skip(long n) throws IOException {
+                byte[] buffer = new byte[(int) Math.min(n, 8192)];
+                long skipped = 0;
+                int count;
+                while (skipped < n && (count = read(buffer, 0, (int) Math.min(n - skipped, buffer.length))) >= 0) {
+                    skipped += count;
+                }
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            // Response is still read if the cache cannot be written
+            private void copy(byte[] buffer, int offset, int length) {
+                if (failed) {
+                    return;
+                }
+                try {
+                    output.write(buffer, offset, length);
+                } catch (IOException e) {
+                    logger.warn("Cannot write cached response " + partPath.toString() + ": " + e);
+                    failed = true;
+                    return;
+                }
+                if (memoryCopy != null) {
+                    memoryCopy.write(buffer, offset, length);
+                    if (memoryCopy.size() > getMaxMemoryBodySize()) {
+                        memoryCopy = null;
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    if (!failed) {
+                        byte[] buffer = new byte[8192];
+                        while (read(buffer, 0, buffer.length) >= 0) {
+                            // Rest of the body goes to the cache
+                        }
+                    }
+                } catch (IOException e) {
+                    failed = true;
+                } finally {
+                    try {
+                        super.close();
+                    } finally {
+                        cacheBody(hash, path, partPath, output, failed,
+                                memoryCopy == null ? null : memoryCopy.toByteArray(), fetchedAtMs);
+                    }
+                }
+            }
+        };
+    }
+
+    private void cacheBody(String hash, Path path, Path partPath, DataOutputStream output, boolean failed,
+                           byte[] body, long fetchedAtMs) throws IOException {
+        try {
+            output.close();
+        } catch (IOException e) {
+            failed = true;
+        }
+        if (failed) {
+            Files.deleteIfExists(partPath);
+            return;
+        }
+        long size = Files.size(partPath);
+        Files.move(partPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        lock.lock();
+        try {
+            DiskEntry previous = diskEntries.put(hash, new DiskEntry(path, size));
+            diskBytes += size - (previous == null ? 0 : previous.size);
+        } finally {
+            lock.unlock();
+        }
+        if (body != null) {
+            keepInMemory(hash, body, fetchedAtMs);
+        }
+        evictFromDisk();
+    }
+
+
+    // Large responses would push out many small ones
+    private long getMaxMemoryBodySize() {
+        return maxMemoryBytes / 8;
+    }
+
+    private void keepInMemory(String hash, byte[] body, long fetchedAtMs) {
+        if (body.length > getMaxMemoryBodySize()) {
+            return;
+        }
+        lock.lock();
+        try {
+            MemoryEntry previous = memoryEntries.put(hash, new MemoryEntry(body, fetchedAtMs));
+            memoryBytes += body.length - (previous == null ? 0 : previous.body.length);
+            Iterator<MemoryEntry> iterator = memoryEntries.values().iterator();
+            while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+                memoryBytes -= iterator.next().body.length;
+                iterator.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeFromDisk(String hash) {
+        lock.lock();
+        try {
+            DiskEntry entry = diskEntries.remove(hash);
+            if (entry != null) {
+                diskBytes -= entry.size;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evictFromDisk() throws IOException {
+        List<Path> evictedPaths = new ArrayList<>();
+        lock.lock();
+        try {
+            Iterator<Map.Entry<String, DiskEntry>> iterator = diskEntries.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+                Map.Entry<String, DiskEntry> entry = iterator.next();
+                diskBytes -= entry.getValue().size;
+                evictedPaths.add(entry.getValue().path);
+                MemoryEntry memoryEntry = memoryEntries.remove(entry.getKey());
+                if (memoryEntry != null) {
+                    memoryBytes -= memoryEntry.body.length;
+                }
+                iterator.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Path path : evictedPaths) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+
+
+/**
+ * How many times a failed API request is repeated and how long to wait before each attempt:
+ * exponential backoff from the base delay up to the max delay with full jitter,
+ * so workers failing together do not retry together.
+ */
+class RetryPolicy {
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    // Random number from 0 to the given bound exclusive
+    private final LongUnaryOperator random;
+
+
+    RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+        this(maxAttempts, baseDelayMs, maxDelayMs, bound -> ThreadLocalRandom.current().nextLong(bound));
+    }
+
+    // Random numbers are given by tests
+    RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs, LongUnaryOperator random) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMs = Math.max(1, baseDelayMs);
+        this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+        this.random = random;
+    }
+
+
+    boolean canRetry(int attempt) {
+        return attempt < maxAttempts;
+    }
+
+    // Delay after given failed attempt, attempts are counted from 1
+    long getDelayMs(int attempt) {
+        long ceilingMs = baseDelayMs << Math.min(attempt - 1, 30);
+        return random.applyAsLong(Math.min(ceilingMs, maxDelayMs) + 1);
+    }
+
+    // Retry-After of the response, if any, is waited for even when it is longer than the max delay
+    long getDelayMs(int attempt, long retryAfterSeconds) {
+        return Math.max(getDelayMs(attempt), TimeUnit.SECONDS.toMillis(retryAfterSeconds));
+    }
+}
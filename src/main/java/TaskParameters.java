@@ -1,14 +1,20 @@
 import java.nio.file.Path;
 
 class TaskParameters {
+    private Wiki wiki;
     private String currentCategory;
     private String globalCategory;
     private int level;
     private Path pathToStoreCategoryPages;
     private String prefixForPageFilename;
+    // Pages in the category by prop=categoryinfo, -1 if unknown
+    private int estimatedPages = -1;
+    // Page id of the category as listed in its parent, null for global categories
+    private String categoryPageId;
 
-    TaskParameters(String currentCategory, String globalCategory, int level, Path pathToStoreCategoryPages,
-                   String prefixForPageFilename){
+    TaskParameters(Wiki wiki, String currentCategory, String globalCategory, int level,
+                   Path pathToStoreCategoryPages, String prefixForPageFilename){
+        this.wiki = wiki;
         this.currentCategory = currentCategory;
         this.globalCategory = globalCategory;
         this.level = level;
@@ -16,6 +22,10 @@ class TaskParameters {
         this.prefixForPageFilename = prefixForPageFilename;
     }
 
+    Wiki getWiki() {
+        return wiki;
+    }
+
     String getCurrentCategory() {
         return currentCategory;
     }
@@ -24,6 +34,16 @@ class TaskParameters {
         return globalCategory;
     }
 
+    // Number of the global category, unique across wikis, is the first part of the filename prefix
+    int getGlobalCategoryNumber() {
+        return Integer.parseInt(prefixForPageFilename.substring(0, prefixForPageFilename.indexOf('_')));
+    }
+
+    // Global category and level, for page budgets and level ordering
+    long getLevelKey() {
+        return PageBudgets.levelKey(getGlobalCategoryNumber(), level);
+    }
+
     int getLevel() {
         return level;
     }
@@ -35,4 +55,20 @@ class TaskParameters {
     String getPrefixForPageFilename() {
         return prefixForPageFilename;
     }
+
+    int getEstimatedPages() {
+        return estimatedPages;
+    }
+
+    void setEstimatedPages(int estimatedPages) {
+        this.estimatedPages = estimatedPages;
+    }
+
+    String getCategoryPageId() {
+        return categoryPageId;
+    }
+
+    void setCategoryPageId(String categoryPageId) {
+        this.categoryPageId = categoryPageId;
+    }
 }
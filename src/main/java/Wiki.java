@@ -0,0 +1,99 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Wiki to crawl: its API endpoint, article url prefix, name of the category namespace, global categories
+ * and its own request rate and connection pool, so wikis crawled together do not slow each other down.
+ * Page ids and category titles repeat across wikis, so pages and categories are tracked by keys
+ * qualified with the wiki name.
+ * In memory pages are tracked by numeric keys, the page id with the wiki number in its high bits.
+ */
+class Wiki {
+    // Page ids of Wikipedia are far below 2^40
+    private static final int pageIdBits = 40;
+
+    private final int number;
+    private final String name;
+    private final String apiUrl;
+    private final String articleUrl;
+    private final String categoryNamespace;
+    // Global category number -> global category, numbers are unique across wikis
+    private final Map<Integer, String> categories = new LinkedHashMap<>();
+    private final double requestsPerSecond;
+    private final int requestBurst;
+    private final int httpMaxConnections;
+
+
+    Wiki(int number, String name, String apiUrl, String articleUrl, String categoryNamespace, double requestsPerSecond,
+         int requestBurst, int httpMaxConnections) {
+        this.number = number;
+        this.name = name;
+        this.apiUrl = apiUrl;
+        this.articleUrl = articleUrl;
+        this.categoryNamespace = categoryNamespace;
+        this.requestsPerSecond = requestsPerSecond;
+        this.requestBurst = requestBurst;
+        this.httpMaxConnections = httpMaxConnections;
+    }
+
+
+    String getName() {
+        return name;
+    }
+
+    String getApiUrl() {
+        return apiUrl;
+    }
+
+    String getArticleUrl() {
+        return articleUrl;
+    }
+
+    Map<Integer, String> getCategories() {
+        return categories;
+    }
+
+    double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    int getRequestBurst() {
+        return requestBurst;
+    }
+
+    int getHttpMaxConnections() {
+        return httpMaxConnections;
+    }
+
+    void addCategory(int categoryNumber, String category) {
+        categories.put(categoryNumber, category);
+    }
+
+    // Full title of a category, for example Категория:Спорт
+    String categoryTitle(String category) {
+        return categoryNamespace + ":" + category;
+    }
+
+    // Category title without the namespace, for directory names
+    String stripNamespace(String categoryTitle) {
+        return categoryTitle.replace(categoryNamespace + ":", "");
+    }
+
+    // Page id or category title qualified with the wiki name
+    String key(String value) {
+        return name.isEmpty() ? value : name + ":" + value;
+    }
+
+    // Numeric page key, unique across wikis
+    long pageKey(String pageId) {
+        return ((long) number << pageIdBits) | Long.parseLong(pageId);
+    }
+
+    // Numeric key of a page key of a journal or page index, -1 if its wiki is not configured
+    static long parsePageKey(String key) {
+        int separator = key.lastIndexOf(':');
+        Wiki wiki = Main.getWiki(separator < 0 ? "" : key.substring(0, separator));
+        return wiki == null ? -1 : wiki.pageKey(key.substring(separator + 1));
+    }
+}
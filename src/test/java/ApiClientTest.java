@@ -0,0 +1,157 @@
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class ApiClientTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    // Status and API error of the next responses, then 200 without error
+    private final Deque<Object[]> responses = new ArrayDeque<>();
+    private final AtomicInteger requests = new AtomicInteger();
+
+
+    private static HttpResponse response(int statusCode, String... headers) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, "Status " + statusCode);
+        for (int i = 0; i < headers.length; i += 2) {
+            response.addHeader(headers[i], headers[i + 1]);
+        }
+        return response;
+    }
+
+
+    @Before
+    public void setUp() throws Exception {
+        TestConfig.load(folder.getRoot().toPath());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            Object[] next;
+            synchronized (responses) {
+                next = responses.isEmpty() ? new Object[]{200, null} : responses.poll();
+            }
+            if (next[1] != null) {
+                exchange.getResponseHeaders().add("MediaWiki-API-Error", (String) next[1]);
+                exchange.getResponseHeaders().add("Retry-After", "1");
+            }
+            byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders((Integer) next[0], body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+
+    @Test
+    public void throttlingIsToldByStatusOrMaxlagError() {
+        assertTrue(ApiClient.isThrottled(response(429)));
+        assertTrue(ApiClient.isThrottled(response(HttpStatus.SC_SERVICE_UNAVAILABLE)));
+        assertTrue(ApiClient.isThrottled(response(HttpStatus.SC_OK, "MediaWiki-API-Error", "maxlag")));
+        assertFalse(ApiClient.isThrottled(response(HttpStatus.SC_OK, "MediaWiki-API-Error", "badtitle")));
+        assertFalse(ApiClient.isThrottled(response(HttpStatus.SC_INTERNAL_SERVER_ERROR)));
+
+        assertTrue(ApiClient.isRetryable(response(HttpStatus.SC_INTERNAL_SERVER_ERROR)));
+        assertTrue(ApiClient.isRetryable(response(HttpStatus.SC_OK, "MediaWiki-API-Error", "maxlag")));
+        assertFalse(ApiClient.isRetryable(response(HttpStatus.SC_NOT_FOUND)));
+        assertFalse(ApiClient.isRetryable(response(HttpStatus.SC_OK, "MediaWiki-API-Error", "badtitle")));
+
+        assertEquals("HTTP/1.1 404 Status 404", ApiClient.getRejection(response(HttpStatus.SC_NOT_FOUND)));
+        assertEquals("API error: badtitle",
+                ApiClient.getRejection(response(HttpStatus.SC_OK, "MediaWiki-API-Error", "badtitle")));
+        assertNull(ApiClient.getRejection(response(HttpStatus.SC_OK)));
+    }
+
+    @Test
+    public void retryAfterIsReadInSecondsOrAsDate() {
+        long nowMs = 1700000000000L;
+        assertEquals(120, ApiClient.getRetryAfterSeconds(response(503, "Retry-After", "120"), nowMs));
+        assertEquals(1, ApiClient.getRetryAfterSeconds(response(503, "Retry-After", "0"), nowMs));
+        assertEquals(30, ApiClient.getRetryAfterSeconds(
+                response(503, "Retry-After", DateUtils.formatDate(new Date(nowMs + 30000))), nowMs));
+        assertEquals(1, ApiClient.getRetryAfterSeconds(
+                response(503, "Retry-After", DateUtils.formatDate(new Date(nowMs - 30000))), nowMs));
+        assertEquals(-1, ApiClient.getRetryAfterSeconds(response(503, "Retry-After", "soon"), nowMs));
+        assertEquals(-1, ApiClient.getRetryAfterSeconds(response(503), nowMs));
+    }
+
+    @Test
+    public void maxlagIsRetriedAfterRetryAfter() throws Exception {
+        responses.add(new Object[]{200, "maxlag"});
+        Path logPath = folder.getRoot().toPath().resolve(FailedRequestLog.filename);
+        CrawlMetrics metrics = new CrawlMetrics(1, 1);
+        RateLimiter rateLimiter = new RateLimiter(100, 1);
+        try (FailedRequestLog failedRequestLog = new FailedRequestLog(logPath);
+             ApiClient client = new ApiClient(2, rateLimiter, new RetryPolicy(3, 1, 1),
+                     new CircuitBreaker(0, 1, 1), metrics, failedRequestLog)) {
+            long startNanos = System.nanoTime();
+            try (ApiClient.Response response = client.execute(
+                    new HttpGet("http://127.0.0.1:" + server.getAddress().getPort() + "/api.php"),
+                    CrawlMetrics.RequestType.PAGES)) {
+                assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+            }
+            assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(900));
+        }
+        assertEquals(2, requests.get());
+        assertEquals(1, metrics.getRetries());
+        assertEquals(0, metrics.getFailedRequests());
+        // Rate is lowered by the back off
+        assertEquals(50, rateLimiter.getPermitsPerSecond(), 2);
+        List<String> lines = Files.readAllLines(logPath, StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).contains("\tRETRY\tpages\t1\t"));
+    }
+
+    @Test
+    public void clientErrorIsNotRetried() throws Exception {
+        responses.add(new Object[]{404, null});
+        Path logPath = folder.getRoot().toPath().resolve(FailedRequestLog.filename);
+        CrawlMetrics metrics = new CrawlMetrics(1, 1);
+        try (FailedRequestLog failedRequestLog = new FailedRequestLog(logPath);
+             ApiClient client = new ApiClient(2, new RateLimiter(0, 1), new RetryPolicy(3, 1, 1),
+                     new CircuitBreaker(0, 1, 1), metrics, failedRequestLog);
+             ApiClient.Response response = client.execute(
+                     new HttpGet("http://127.0.0.1:" + server.getAddress().getPort() + "/api.php"),
+                     CrawlMetrics.RequestType.CATEGORY)) {
+            assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusLine().getStatusCode());
+        }
+        assertEquals(1, requests.get());
+        assertEquals(0, metrics.getRetries());
+        assertEquals(1, metrics.getFailedRequests());
+        List<String> lines = Files.readAllLines(logPath, StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).contains("\tFAILED\tcategory\t1\t"));
+    }
+}
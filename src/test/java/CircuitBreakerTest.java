@@ -0,0 +1,109 @@
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class CircuitBreakerTest {
+    private final AtomicLong clock = new AtomicLong(1000);
+    private final CircuitBreaker breaker = new CircuitBreaker(3, 10, 25, clock::get);
+
+
+    private void advanceSeconds(long seconds) {
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+
+    private void fail(int times) {
+        for (int i = 0; i < times; i++) {
+            breaker.onFailure();
+        }
+    }
+
+
+    @Test
+    public void staysClosedWhileFailuresAreNotConsecutive() {
+        fail(2);
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        fail(2);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void opensAfterThresholdThenLetsOneTrialThrough() {
+        fail(3);
+        assertFalse(breaker.tryAcquire());
+        advanceSeconds(9);
+        assertFalse(breaker.tryAcquire());
+
+        // Half open: one trial request, others wait for its outcome
+        advanceSeconds(1);
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+
+        breaker.onSuccess();
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void failedTrialDoublesPauseUpToMax() {
+        fail(3);
+        advanceSeconds(10);
+        assertTrue(breaker.tryAcquire());
+        fail(1);
+
+        advanceSeconds(19);
+        assertFalse(breaker.tryAcquire());
+        advanceSeconds(1);
+        assertTrue(breaker.tryAcquire());
+        fail(1);
+
+        advanceSeconds(24);
+        assertFalse(breaker.tryAcquire());
+        advanceSeconds(1);
+        assertTrue(breaker.tryAcquire());
+
+        // Closing resets the pause
+        breaker.onSuccess();
+        fail(3);
+        advanceSeconds(10);
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void waitingRequestsResumeWhenTrialSucceeds() throws Exception {
+        fail(3);
+        advanceSeconds(10);
+        assertTrue(breaker.tryAcquire());
+
+        Thread waiter = new Thread(() -> {
+            try {
+                breaker.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+
+        breaker.onSuccess();
+        waiter.join(10000);
+        assertFalse(waiter.isAlive());
+    }
+
+    @Test
+    public void zeroThresholdDisablesBreaker() {
+        CircuitBreaker disabled = new CircuitBreaker(0, 10, 25, clock::get);
+        for (int i = 0; i < 100; i++) {
+            disabled.onFailure();
+        }
+        assertTrue(disabled.tryAcquire());
+        assertTrue(disabled.tryAcquire());
+    }
+}
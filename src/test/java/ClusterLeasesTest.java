@@ -0,0 +1,72 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+public class ClusterLeasesTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    private static void expire(Path clusterPath, String workerId, String taskName) throws Exception {
+        Files.setLastModifiedTime(clusterPath.resolve("leased").resolve(workerId).resolve(taskName),
+                FileTime.fromMillis(0));
+    }
+
+
+    @Test
+    public void expiredLeasesCountAsAttempts() throws Exception {
+        Path clusterPath = folder.getRoot().toPath();
+        ClusterLeases leases = new ClusterLeases(clusterPath);
+        leases.publish(Map.of(0, "Sports"));
+
+        for (int attempt = 1; attempt <= 2; attempt++) {
+            ClusterLeases.Lease lease = leases.acquire("w1");
+            assertNotNull(lease);
+            assertEquals(attempt - 1, lease.getAttempts());
+            expire(clusterPath, "w1", lease.getTaskName());
+            assertEquals(1, leases.requeueExpired(60000, 3));
+            assertEquals(1, leases.getTaskCount());
+        }
+
+        ClusterLeases.Lease lease = leases.acquire("w1");
+        expire(clusterPath, "w1", lease.getTaskName());
+        assertEquals(1, leases.requeueExpired(60000, 3));
+        assertEquals(0, leases.getTaskCount());
+        assertEquals(0, leases.getLeasedCount());
+        assertEquals(List.of("00_Sports"), leases.getFailedTaskNames());
+    }
+
+    @Test
+    public void interruptedRequeueIsFinished() throws Exception {
+        Path clusterPath = folder.getRoot().toPath();
+        ClusterLeases leases = new ClusterLeases(clusterPath);
+        leases.publish(Map.of(0, "Sports"));
+        ClusterLeases.Lease lease = leases.acquire("w1");
+
+        // Coordinator stopped after hiding the expired lease in tasks/
+        Files.move(clusterPath.resolve("leased").resolve("w1").resolve(lease.getTaskName()),
+                clusterPath.resolve("tasks").resolve(lease.getTaskName() + ".expired.part"));
+        assertNull(leases.acquire("w2"));
+
+        assertEquals(0, leases.requeueExpired(60000, 3));
+        Path taskPath = clusterPath.resolve("tasks").resolve("00_Sports");
+        assertEquals("0\tSports\t1", new String(Files.readAllBytes(taskPath), StandardCharsets.UTF_8));
+        try (Stream<Path> files = Files.list(clusterPath.resolve("tasks"))) {
+            assertEquals(List.of(taskPath), files.collect(Collectors.toList()));
+        }
+    }
+}
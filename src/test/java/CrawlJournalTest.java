@@ -0,0 +1,119 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class CrawlJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private Path journalPath;
+    private Wiki wiki;
+
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.getRoot().toPath();
+        TestConfig.load(directory);
+        journalPath = directory.resolve("crawl.journal");
+        wiki = Main.getWiki("");
+    }
+
+
+    private CrawlJournal open(boolean resume) throws Exception {
+        return new CrawlJournal(journalPath, resume, new CsvSink(directory.resolve("pages_info.csv")),
+                new PageIndex(directory, false), new PageClaims(false), new LongHashSet(false));
+    }
+
+    private TaskParameters task(String category, int level, String prefix) {
+        return new TaskParameters(wiki, wiki.categoryTitle(category), wiki.categoryTitle("Sports"), level,
+                directory.resolve(prefix + category), prefix);
+    }
+
+
+    @Test
+    public void truncatedLastRecordIsRemovedOnResume() throws Exception {
+        CrawlJournal journal = open(false);
+        journal.taskEnqueued(task("Sports", 0, "00_"));
+        journal.pageSaved("00_", "12", "00_000", 7, 100, "00_Sports/00_000.txt", "\"00_000\"");
+        journal.close();
+        // Crash in the middle of the next record
+        Files.write(journalPath, "P\t00_\t13\t00_0".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        journal = open(true);
+        assertEquals(1, journal.getPendingTasks().size());
+        assertEquals(1, journal.getSavedPageCount("00_"));
+        assertTrue(journal.isPageSaved("00_", wiki.pageKey("12")));
+        assertFalse(journal.isPageSaved("00_", wiki.pageKey("13")));
+        journal.pageSaved("00_", "13", "00_001", 8, 200, "00_Sports/00_001.txt", "\"00_001\"");
+        journal.taskCompleted("00_", 2);
+        journal.close();
+
+        List<String> lines = Files.readAllLines(journalPath, StandardCharsets.UTF_8);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(2).startsWith("P\t00_\t13\t00_001\t"));
+        assertEquals("D\t00_\t2", lines.get(3));
+
+        journal = open(true);
+        assertTrue(journal.getPendingTasks().isEmpty());
+        assertEquals(2, journal.getSavedPageCount("00_"));
+        journal.close();
+    }
+
+    @Test
+    public void categoriesAreVisitedByPageIds() throws Exception {
+        CrawlJournal journal = open(false);
+        journal.taskEnqueued(task("Sports", 0, "00_"));
+        TaskParameters subcategory = task("Football", 1, "00_000_");
+        subcategory.setCategoryPageId("42");
+        journal.taskEnqueued(subcategory);
+        journal.taskCompleted("00_", 0);
+        journal.close();
+
+        LongHashSet visitedCategoryIds = new LongHashSet(false);
+        journal = new CrawlJournal(journalPath, true, new CsvSink(directory.resolve("pages_info.csv")),
+                new PageIndex(directory, false), new PageClaims(false), visitedCategoryIds);
+        assertEquals(1, journal.getPendingTasks().size());
+        assertEquals("42", journal.getPendingTasks().get(0).getCategoryPageId());
+        assertTrue(visitedCategoryIds.contains(wiki.pageKey("42")));
+        assertEquals(1, visitedCategoryIds.size());
+        assertEquals(Set.of("Category:Sports"), journal.getVisitedCategories());
+        journal.close();
+    }
+
+    @Test
+    public void journalWithoutCompleteRecordIsEmptied() throws Exception {
+        Files.write(journalPath, "T\t0\t00_".getBytes(StandardCharsets.UTF_8));
+
+        CrawlJournal journal = open(true);
+        assertTrue(journal.getPendingTasks().isEmpty());
+        journal.close();
+
+        assertEquals(0, Files.size(journalPath));
+    }
+
+    @Test
+    public void completeJournalIsKept() throws Exception {
+        CrawlJournal journal = open(false);
+        journal.taskEnqueued(task("Sports", 0, "00_"));
+        journal.close();
+        long size = Files.size(journalPath);
+
+        open(true).close();
+
+        assertEquals(size, Files.size(journalPath));
+    }
+}
@@ -0,0 +1,65 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class CsvSinkTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    private static String row(String fileId) {
+        return "\"" + fileId + "\",\"Статья " + fileId + "\"";
+    }
+
+
+    @Test
+    public void rowsAreSortedAcrossChunks() throws Exception {
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            rows.add(row(String.format("%02d_%03d", i % 3, i)));
+        }
+        List<String> shuffled = new ArrayList<>(rows);
+        Collections.shuffle(shuffled, new Random(1));
+
+        Path csvPath = folder.getRoot().toPath().resolve("pages_info.csv");
+        // Seven chunks of four rows or less
+        CsvSink csvSink = new CsvSink(csvPath, 4);
+        csvSink.addRows(shuffled.subList(0, 10));
+        for (String row : shuffled.subList(10, shuffled.size())) {
+            csvSink.addRow(row);
+        }
+        csvSink.close();
+
+        List<String> expected = new ArrayList<>();
+        expected.add(CsvSink.header);
+        rows.sort(null);
+        expected.addAll(rows);
+        assertEquals(expected, Files.readAllLines(csvPath, StandardCharsets.UTF_8));
+
+        // Part file and chunks are deleted
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            assertEquals(List.of(csvPath), files.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void emptyCsvHasHeaderOnly() throws Exception {
+        Path csvPath = folder.getRoot().toPath().resolve("pages_info.csv");
+        new CsvSink(csvPath, 4).close();
+
+        assertEquals(List.of(CsvSink.header), Files.readAllLines(csvPath, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,151 @@
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Two runs of a crawl in incremental mode against a local API with one category of six pages,
+ * the response cache on. Pages changed between the runs are downloaded again, the rest are reused.
+ */
+public class IncrementalCrawlTest {
+    private static final int pageCount = 6;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private final Map<Integer, Long> revisionIds = new ConcurrentHashMap<>();
+    private final Set<Integer> extractedPageIds = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger infoRequests = new AtomicInteger();
+
+
+    private String respond(Map<String, String> params) {
+        if ("categorymembers".equals(params.get("list"))) {
+            List<String> members = new ArrayList<>();
+            for (int pageId = 1; pageId <= pageCount; pageId++) {
+                members.add("{\"pageid\":" + pageId + ",\"ns\":0,\"title\":\"Page " + pageId + "\",\"type\":\"page\"}");
+            }
+            return "{\"batchcomplete\":\"\",\"query\":{\"categorymembers\":[" + String.join(",", members) + "]}}";
+        }
+        boolean withExtracts = params.get("prop").contains("extracts");
+        if (!withExtracts) {
+            infoRequests.incrementAndGet();
+        }
+        List<String> pages = new ArrayList<>();
+        for (String id : params.get("pageids").split("\\|")) {
+            int pageId = Integer.parseInt(id);
+            long revisionId = revisionIds.get(pageId);
+            String page = "\"" + pageId + "\":{\"pageid\":" + pageId + ",\"ns\":0,\"title\":\"Page " + pageId +
+                    "\",\"lastrevid\":" + revisionId;
+            if (withExtracts) {
+                extractedPageIds.add(pageId);
+                page += ",\"extract\":\"Text of page " + pageId + " revision " + revisionId + "\"";
+            }
+            pages.add(page + "}");
+        }
+        return "{\"batchcomplete\":\"\",\"query\":{\"pages\":{" + String.join(",", pages) + "}}}";
+    }
+
+    private Map<Integer, Long> readPageIndex() throws IOException {
+        Map<Integer, Long> indexed = new HashMap<>();
+        for (String line : Files.readAllLines(Main.getDataDirectoryPath().resolve("page_index.tsv"))) {
+            String[] fields = line.split("\t");
+            indexed.put(Integer.parseInt(fields[0].substring(fields[0].lastIndexOf(':') + 1)),
+                    Long.parseLong(fields[1]));
+        }
+        return indexed;
+    }
+
+
+    @Before
+    public void setUp() throws Exception {
+        for (int pageId = 1; pageId <= pageCount; pageId++) {
+            revisionIds.put(pageId, 1000L + pageId);
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/w/api.php", exchange -> {
+            Map<String, String> params = new HashMap<>();
+            for (NameValuePair pair : URLEncodedUtils.parse(exchange.getRequestURI(), StandardCharsets.UTF_8)) {
+                params.put(pair.getName(), pair.getValue());
+            }
+            byte[] body = respond(params).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        server.start();
+
+        TestConfig.load(folder.getRoot().toPath(),
+                "api_url = http://127.0.0.1:" + server.getAddress().getPort() + "/w/api.php",
+                "requests_per_second = 0",
+                "incremental = true",
+                "response_cache = true");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void onlyChangedPagesAreDownloadedAgain() throws Exception {
+        assertTrue(Crawler.run());
+        assertEquals(0, infoRequests.get());
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3, 4, 5, 6)), extractedPageIds);
+
+        revisionIds.put(2, 2002L);
+        revisionIds.put(5, 2005L);
+        extractedPageIds.clear();
+        assertTrue(Crawler.run());
+
+        // Revisions are checked in one request, extracts of changed pages are not taken from the cache
+        assertEquals(1, infoRequests.get());
+        assertEquals(new HashSet<>(Arrays.asList(2, 5)), extractedPageIds);
+        assertEquals(4, Crawler.getMetrics().getPagesReused());
+        assertEquals(revisionIds, readPageIndex());
+    }
+
+    @Test
+    public void unchangedCrawlIsServedFromIndexAndCache() throws Exception {
+        assertTrue(Crawler.run());
+        extractedPageIds.clear();
+        assertTrue(Crawler.run());
+
+        assertEquals(1, infoRequests.get());
+        assertTrue(extractedPageIds.isEmpty());
+        assertEquals(pageCount, Crawler.getMetrics().getPagesReused());
+        assertEquals(revisionIds, readPageIndex());
+    }
+}
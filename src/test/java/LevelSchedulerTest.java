@@ -0,0 +1,247 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class LevelSchedulerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Wiki wiki;
+    private ExecutorService categoryExecutor;
+    private ExecutorService pageExecutor;
+    private LevelScheduler scheduler;
+    // Steps of the categories in the order they happened
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    // Set up by the tests before the scheduler starts, by prefix
+    private final Map<String, CountDownLatch> listingLatches = new HashMap<>();
+    private final Map<String, CountDownLatch> batchLatches = new HashMap<>();
+    private final Map<String, List<TaskParameters>> subcategories = new HashMap<>();
+    private final Map<String, CountDownLatch> pendingUntil = new HashMap<>();
+
+
+    // Category which lists nothing, schedules one page batch and enqueues the given subcategories when it claims
+    private class FakeCategory implements LevelScheduler.CategoryTask {
+        private final TaskParameters task;
+        private final String prefix;
+
+        FakeCategory(TaskParameters task) {
+            this.task = task;
+            this.prefix = task.getPrefixForPageFilename();
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            CountDownLatch latch = listingLatches.get(prefix);
+            if (latch != null) {
+                latch.await();
+            }
+            events.add("list " + prefix);
+            return 0;
+        }
+
+        @Override
+        public void claimPages() {
+            events.add("claim " + prefix);
+            CountDownLatch latch = batchLatches.get(prefix);
+            scheduler.schedulePages(task, () -> {
+                if (latch != null) {
+                    latch.await();
+                }
+                events.add("batch " + prefix);
+                return 1;
+            });
+            subcategories.getOrDefault(prefix, Collections.emptyList()).forEach(scheduler::schedule);
+        }
+
+        @Override
+        public void referencePages() {
+            events.add("reference " + prefix);
+        }
+
+        @Override
+        public boolean hasPendingReferences() {
+            CountDownLatch latch = pendingUntil.get(prefix);
+            return latch != null && latch.getCount() > 0;
+        }
+
+        @Override
+        public void complete() {
+            events.add("complete " + prefix);
+        }
+    }
+
+
+    @Before
+    public void setUp() throws Exception {
+        TestConfig.load(folder.getRoot().toPath());
+        wiki = Main.getWiki("");
+        categoryExecutor = Executors.newFixedThreadPool(4);
+        pageExecutor = Executors.newFixedThreadPool(4);
+        scheduler = new LevelScheduler(categoryExecutor, pageExecutor, 3, new CrawlMetrics(3, 4), FakeCategory::new);
+    }
+
+    @After
+    public void tearDown() {
+        categoryExecutor.shutdownNow();
+        pageExecutor.shutdownNow();
+    }
+
+
+    private TaskParameters task(String globalCategory, int level, String prefix) {
+        return new TaskParameters(wiki, wiki.categoryTitle(prefix), wiki.categoryTitle(globalCategory), level,
+                folder.getRoot().toPath().resolve(prefix), prefix);
+    }
+
+    private void awaitCompletion() throws InterruptedException {
+        Thread waiter = new Thread(() -> {
+            try {
+                scheduler.awaitCompletion();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        waiter.join(10000);
+        assertTrue("Crawl not finished: " + events, !waiter.isAlive());
+    }
+
+    private void waitFor(String event) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!events.contains(event)) {
+            assertTrue("No " + event + ": " + events, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private List<String> eventsStartingWith(String step) {
+        List<String> found = new ArrayList<>();
+        synchronized (events) {
+            for (String event : events) {
+                if (event.startsWith(step)) {
+                    found.add(event);
+                }
+            }
+        }
+        return found;
+    }
+
+    private void assertBefore(String earlier, String later) {
+        int earlierIndex = events.indexOf(earlier);
+        int laterIndex = events.indexOf(later);
+        assertTrue(earlier + " missing: " + events, earlierIndex >= 0);
+        assertTrue(later + " missing: " + events, laterIndex >= 0);
+        assertTrue(earlier + " not before " + later + ": " + events, earlierIndex < laterIndex);
+    }
+
+
+    @Test
+    public void categoriesClaimInPrefixOrderWhateverOrderTheyAreListed() throws Exception {
+        // Each category is listed only after the next one, so listings finish in reverse order
+        CountDownLatch secondListed = new CountDownLatch(1);
+        CountDownLatch thirdListed = new CountDownLatch(1);
+        listingLatches.put("00_000_", secondListed);
+        listingLatches.put("00_001_", thirdListed);
+        scheduler.schedule(task("Sports", 1, "00_001_"));
+        scheduler.schedule(task("Sports", 1, "00_000_"));
+        scheduler.schedule(task("Sports", 1, "00_002_"));
+        scheduler.start();
+
+        waitFor("list 00_002_");
+        thirdListed.countDown();
+        waitFor("list 00_001_");
+        secondListed.countDown();
+        awaitCompletion();
+
+        assertEquals(Arrays.asList("list 00_002_", "list 00_001_", "list 00_000_"), eventsStartingWith("list"));
+        assertEquals(Arrays.asList("claim 00_000_", "claim 00_001_", "claim 00_002_"), eventsStartingWith("claim"));
+        assertEquals(Arrays.asList("complete 00_000_", "complete 00_001_", "complete 00_002_"),
+                eventsStartingWith("complete"));
+    }
+
+    @Test
+    public void nextLevelIsReleasedWhenPageBatchesOfThePreviousOneFinish() throws Exception {
+        CountDownLatch batch = new CountDownLatch(1);
+        batchLatches.put("00_", batch);
+        subcategories.put("00_", Arrays.asList(task("Sports", 1, "00_000_"), task("Sports", 1, "00_001_")));
+        scheduler.schedule(task("Sports", 0, "00_"));
+        scheduler.start();
+
+        waitFor("claim 00_");
+        Thread.sleep(200);
+        assertEquals(Collections.singletonList("claim 00_"), eventsStartingWith("claim"));
+        batch.countDown();
+        awaitCompletion();
+
+        assertBefore("batch 00_", "reference 00_");
+        assertBefore("complete 00_", "list 00_000_");
+        assertBefore("complete 00_", "list 00_001_");
+        assertEquals(3, eventsStartingWith("complete").size());
+    }
+
+    @Test
+    public void globalCategoriesGoOnIndependently() throws Exception {
+        CountDownLatch batch = new CountDownLatch(1);
+        batchLatches.put("00_", batch);
+        subcategories.put("01_", Collections.singletonList(task("Arts", 1, "01_000_")));
+        scheduler.schedule(task("Sports", 0, "00_"));
+        scheduler.schedule(task("Arts", 0, "01_"));
+        scheduler.start();
+
+        // Next level of the second global category does not wait for the batch of the first one
+        waitFor("complete 01_000_");
+        assertTrue(eventsStartingWith("batch 00_").isEmpty());
+        batch.countDown();
+        awaitCompletion();
+        assertBefore("complete 01_000_", "complete 00_");
+    }
+
+    @Test
+    public void pendingReferencesWaitForPageBatchesOfOtherGlobalCategories() throws Exception {
+        CountDownLatch batch = new CountDownLatch(1);
+        batchLatches.put("00_", batch);
+        // Page of the second global category is downloaded by the first one
+        pendingUntil.put("01_", batch);
+        scheduler.schedule(task("Sports", 0, "00_"));
+        scheduler.schedule(task("Arts", 0, "01_"));
+        scheduler.start();
+
+        waitFor("reference 01_");
+        Thread.sleep(200);
+        assertTrue(eventsStartingWith("complete").isEmpty());
+        batch.countDown();
+        awaitCompletion();
+        assertBefore("batch 00_", "complete 01_");
+    }
+
+    @Test
+    public void cancelledSchedulerFinishesAtOnce() throws Exception {
+        batchLatches.put("00_", new CountDownLatch(1));
+        subcategories.put("00_", Collections.singletonList(task("Sports", 1, "00_000_")));
+        scheduler.schedule(task("Sports", 0, "00_"));
+        scheduler.start();
+
+        waitFor("claim 00_");
+        scheduler.cancel();
+        awaitCompletion();
+        assertEquals(0, scheduler.getWaitingTaskCount());
+        assertTrue(categoryExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(eventsStartingWith("list 00_000_").isEmpty());
+    }
+}
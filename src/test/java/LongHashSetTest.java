@@ -0,0 +1,66 @@
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class LongHashSetTest {
+
+    private static void checkAgainstHashSet(LongHashSet set) {
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            // Small keys collide often, large ones spread over the whole range
+            long key = i % 2 == 0 ? random.nextInt(5000) : random.nextLong();
+            assertEquals(expected.add(key), set.add(key));
+        }
+        assertEquals(expected.size(), set.size());
+        for (long key : expected) {
+            assertTrue(set.contains(key));
+        }
+        for (int i = 0; i < 1000; i++) {
+            long key = random.nextLong();
+            assertEquals(expected.contains(key), set.contains(key));
+        }
+    }
+
+
+    @Test
+    public void growsOnHeap() {
+        checkAgainstHashSet(new LongHashSet(false));
+    }
+
+    @Test
+    public void growsOffHeap() {
+        checkAgainstHashSet(new LongHashSet(true));
+    }
+
+    @Test
+    public void growsFromSmallCapacity() {
+        checkAgainstHashSet(new LongHashSet(false, 2));
+    }
+
+    @Test
+    public void zeroAndNegativeKeysAreKept() {
+        LongHashSet set = new LongHashSet(false, 16);
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.add(-1));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(-1));
+        assertTrue(set.contains(Long.MIN_VALUE));
+        assertEquals(3, set.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityIsPowerOfTwo() {
+        new LongHashSet(false, 12);
+    }
+}
@@ -0,0 +1,77 @@
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class LongLongHashMapTest {
+
+    private static void checkAgainstHashMap(LongLongHashMap map) {
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            long key = i % 2 == 0 ? random.nextInt(5000) : random.nextLong();
+            long value = random.nextInt(Integer.MAX_VALUE);
+            Long previous = expected.putIfAbsent(key, value);
+            assertEquals(previous == null ? LongLongHashMap.noValue : previous, map.putIfAbsent(key, value));
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals((long) entry.getValue(), map.get(entry.getKey()));
+        }
+        for (int i = 0; i < 1000; i++) {
+            long key = random.nextLong();
+            assertEquals(expected.getOrDefault(key, LongLongHashMap.noValue).longValue(), map.get(key));
+        }
+    }
+
+
+    @Test
+    public void growsOnHeap() {
+        checkAgainstHashMap(new LongLongHashMap(false));
+    }
+
+    @Test
+    public void growsOffHeap() {
+        checkAgainstHashMap(new LongLongHashMap(true));
+    }
+
+    @Test
+    public void zeroKeyHasItsValue() {
+        LongLongHashMap map = new LongLongHashMap(false);
+        assertEquals(LongLongHashMap.noValue, map.get(0));
+        assertEquals(LongLongHashMap.noValue, map.putIfAbsent(0, 0));
+        assertEquals(0, map.putIfAbsent(0, 7));
+        assertEquals(0, map.get(0));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void removedKeysLeaveNoGaps() {
+        LongLongHashMap map = new LongLongHashMap(false);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(2);
+        for (int i = 0; i < 50000; i++) {
+            long key = random.nextInt(3000);
+            if (random.nextBoolean()) {
+                Long previous = expected.putIfAbsent(key, (long) i);
+                assertEquals(previous == null ? LongLongHashMap.noValue : previous, map.putIfAbsent(key, i));
+            } else {
+                Long previous = expected.remove(key);
+                assertEquals(previous == null ? LongLongHashMap.noValue : previous, map.remove(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 3000; key++) {
+            assertEquals(expected.getOrDefault(key, LongLongHashMap.noValue).longValue(), map.get(key));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeValuesAreRejected() {
+        new LongLongHashMap(false).putIfAbsent(1, -2);
+    }
+}
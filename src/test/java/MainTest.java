@@ -0,0 +1,50 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+public class MainTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @Test
+    public void sharedSiteSettingsAreForTheSingleWikiOnly() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TestConfig.load(directory, "api_url = http://localhost:8765/w/api.php");
+
+        Wiki wiki = Main.getWiki("");
+        assertEquals("http://localhost:8765/w/api.php", wiki.getApiUrl());
+        assertEquals("Category:Sports", wiki.categoryTitle("Sports"));
+    }
+
+    @Test
+    public void namedWikisHaveTheirOwnSites() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TestConfig.load(directory,
+                "api_url = http://localhost:8765/w/api.php",
+                "wikis = ru,en,de",
+                "wiki.de.category_namespace = Kategorie");
+
+        assertEquals("https://ru.wikipedia.org/w/api.php", Main.getWiki("ru").getApiUrl());
+        assertEquals("Категория:Спорт", Main.getWiki("ru").categoryTitle("Спорт"));
+        assertEquals("https://en.wikipedia.org/wiki/", Main.getWiki("en").getArticleUrl());
+        assertEquals("Category:Sports", Main.getWiki("en").categoryTitle("Sports"));
+        assertEquals("Kategorie:Sport", Main.getWiki("de").categoryTitle("Sport"));
+    }
+
+    @Test
+    public void unknownClusterRoleIsRejected() throws Exception {
+        try {
+            TestConfig.load(folder.getRoot().toPath(), "cluster_role = workers");
+            fail("Unknown cluster role accepted");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Unknown cluster_role: workers, expected none, coordinator or worker", e.getMessage());
+        }
+    }
+}
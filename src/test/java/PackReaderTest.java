@@ -0,0 +1,162 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class PackReaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+
+    @Before
+    public void setUp() {
+        directory = folder.getRoot().toPath();
+    }
+
+
+    private static String text(int number) {
+        return ("Текст статьи " + number + ". ").repeat(number * 10);
+    }
+
+    private long packCount() throws Exception {
+        try (Stream<Path> packs = Files.list(directory.resolve(PackArticleStorage.packDirectoryName))) {
+            return packs.count();
+        }
+    }
+
+    // Text which gzip cannot make much shorter
+    private static String randomText(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('а' + random.nextInt(32)));
+        }
+        return text.toString();
+    }
+
+    private static String write(ArticleStorage.PendingArticle article, String text, String title) throws Exception {
+        try (Writer writer = article.getWriter()) {
+            writer.write(text);
+        }
+        return article.commit(title);
+    }
+
+
+    @Test
+    public void articlesAreReadByFileIdAndLocation() throws Exception {
+        Map<String, String> locations = new LinkedHashMap<>();
+        try (PackArticleStorage storage = new PackArticleStorage(directory, 1024 * 1024, false)) {
+            for (int i = 0; i < 5; i++) {
+                String fileId = String.format("00_%03d", i);
+                locations.put(fileId, write(storage.create(directory, fileId), text(i), "Статья " + i));
+            }
+        }
+
+        try (PackReader reader = new PackReader(directory)) {
+            for (int i = 0; i < 5; i++) {
+                String fileId = String.format("00_%03d", i);
+                assertEquals(text(i), reader.read(fileId));
+                assertEquals(text(i), reader.readAt(locations.get(fileId)));
+                assertEquals("Статья " + i, reader.getEntry(fileId).getTitle());
+            }
+            assertNull(reader.read("00_005"));
+        }
+        // Articles written one after another share a pack
+        assertEquals(1, packCount());
+    }
+
+    @Test
+    public void articlesWrittenAtOnceGoToSeparatePacks() throws Exception {
+        String firstLocation;
+        String secondLocation;
+        String thirdLocation;
+        try (PackArticleStorage storage = new PackArticleStorage(directory, 1024 * 1024, false)) {
+            ArticleStorage.PendingArticle first = storage.create(directory, "00_000");
+            ArticleStorage.PendingArticle second = storage.create(directory, "00_001");
+            Writer firstWriter = first.getWriter();
+            Writer secondWriter = second.getWriter();
+            for (int i = 0; i < 100; i++) {
+                firstWriter.write(text(1));
+                secondWriter.write(text(2));
+            }
+            secondWriter.close();
+            firstWriter.close();
+            // Commit order does not have to follow writing order
+            secondLocation = second.commit("Second");
+            firstLocation = first.commit("First");
+            thirdLocation = write(storage.create(directory, "00_002"), text(3), "Third");
+        }
+
+        assertNotEquals(PackReader.getPackPath(firstLocation), PackReader.getPackPath(secondLocation));
+        try (PackReader reader = new PackReader(directory)) {
+            assertEquals(text(1).repeat(100), reader.read("00_000"));
+            assertEquals(text(2).repeat(100), reader.read("00_001"));
+            assertEquals(text(3), reader.readAt(thirdLocation));
+        }
+    }
+
+    @Test
+    public void fullPacksAreRolledOverAndReadInPackOrder() throws Exception {
+        List<String> fileIds = new ArrayList<>();
+        // Every article fills a pack of one kilobyte
+        try (PackArticleStorage storage = new PackArticleStorage(directory, 1024, false)) {
+            for (int i = 0; i < 4; i++) {
+                String fileId = String.format("00_%03d", i);
+                fileIds.add(fileId);
+                write(storage.create(directory, fileId), text(i + 1) + randomText(2000, i), "Статья " + i);
+            }
+        }
+        assertEquals(4, packCount());
+
+        // Next run appends to new packs only, articles saved again replace earlier ones in the index
+        try (PackArticleStorage storage = new PackArticleStorage(directory, 1024, true)) {
+            write(storage.create(directory, "00_001"), "Новый текст", "Статья 1");
+        }
+        assertEquals(5, packCount());
+
+        List<String> read = new ArrayList<>();
+        try (PackReader reader = new PackReader(directory)) {
+            reader.forEach((entry, text) -> {
+                read.add(entry.getFileId());
+                if (entry.getFileId().equals("00_001")) {
+                    assertEquals("Новый текст", text);
+                } else {
+                    assertTrue(text.startsWith(text(Integer.parseInt(entry.getFileId().substring(3)) + 1)));
+                }
+            });
+        }
+        assertEquals(List.of("00_000", "00_002", "00_003", "00_001"), read);
+    }
+
+    @Test
+    public void filesNamedLikePacksAreSkipped() throws Exception {
+        Path packDirectory = directory.resolve(PackArticleStorage.packDirectoryName);
+        Files.createDirectories(packDirectory);
+        Files.createFile(packDirectory.resolve("articles-00007.pack"));
+        Files.createFile(packDirectory.resolve("articles-00007-copy.pack"));
+        Files.createFile(packDirectory.resolve("articles-99999999999.pack"));
+
+        try (PackArticleStorage storage = new PackArticleStorage(directory, 1024 * 1024, false)) {
+            String location = write(storage.create(directory, "00_000"), text(1), "Статья 0");
+            assertTrue(location, location.startsWith(PackArticleStorage.packDirectoryName + "/articles-00008.pack:"));
+        }
+    }
+}
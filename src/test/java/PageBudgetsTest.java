@@ -0,0 +1,124 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class PageBudgetsTest {
+    private static final long level = PageBudgets.levelKey(0, 1);
+
+
+    @Test
+    public void reserveStopsAtEveryLimit() {
+        PageBudgets budgets = new PageBudgets(10, 6, 4);
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        AtomicInteger other = new AtomicInteger();
+
+        assertEquals(4, budgets.reserve(level, first, 5));
+        assertEquals(0, budgets.reserve(level, first, 1));
+        assertEquals(2, budgets.reserve(level, second, 3));
+        assertTrue(budgets.isLevelUsedUp(level));
+        assertEquals(4, budgets.reserve(PageBudgets.levelKey(1, 1), other, 6));
+        assertTrue(budgets.isTotalUsedUp());
+        assertEquals(4, first.get());
+        assertEquals(2, second.get());
+        assertEquals(6, (int) budgets.getLevelCounts().get(level));
+    }
+
+    @Test
+    public void levelsOfDifferentGlobalCategoriesAreCountedApart() {
+        PageBudgets budgets = new PageBudgets(0, 3, 0);
+        // Keys built by concatenation would make level 10 of category 1 the same as level 0 of category 11
+        assertEquals(3, budgets.reserve(PageBudgets.levelKey(1, 10), new AtomicInteger(), 5));
+        assertFalse(budgets.isLevelUsedUp(PageBudgets.levelKey(11, 0)));
+        assertEquals(3, budgets.reserve(PageBudgets.levelKey(11, 0), new AtomicInteger(), 5));
+        assertEquals("01/10", PageBudgets.levelName(PageBudgets.levelKey(1, 10)));
+    }
+
+    @Test
+    public void releasedUnitsCanBeReservedAgain() {
+        PageBudgets budgets = new PageBudgets(0, 5, 0);
+        AtomicInteger category = new AtomicInteger();
+        assertEquals(5, budgets.reserve(level, category, 8));
+        budgets.release(level, category, 2);
+        assertFalse(budgets.isLevelUsedUp(level));
+        assertEquals(3, category.get());
+
+        assertEquals(2, budgets.reserve(level, new AtomicInteger(), 3));
+        assertTrue(budgets.isLevelUsedUp(level));
+    }
+
+    @Test
+    public void concurrentReservesTakeExactlyTheLimits() throws Exception {
+        PageBudgets budgets = new PageBudgets(1000, 700, 0);
+        long otherLevel = PageBudgets.levelKey(1, 1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                long levelKey = i % 2 == 0 ? level : otherLevel;
+                results.add(executor.submit(() -> {
+                    AtomicInteger category = new AtomicInteger();
+                    int reserved = 0;
+                    // Every unit refused while some are left would leave the budget short
+                    for (int attempt = 0; attempt < 2000; attempt++) {
+                        int granted = budgets.reserve(levelKey, category, 1);
+                        if (attempt % 3 == 0 && granted > 0) {
+                            budgets.release(levelKey, category, 1);
+                            granted = 0;
+                        }
+                        reserved += granted;
+                    }
+                    return reserved;
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> result : results) {
+                total += result.get();
+            }
+            assertEquals(1000, total);
+            assertTrue(budgets.isTotalUsedUp());
+            assertTrue(budgets.getLevelCounts().get(level) <= 700);
+            assertTrue(budgets.getLevelCounts().get(otherLevel) <= 700);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void listedPagesCountUntilClaimed() {
+        PageBudgets budgets = new PageBudgets(0, 8, 4);
+        AtomicInteger firstPages = new AtomicInteger();
+        AtomicInteger firstListed = new AtomicInteger();
+        AtomicInteger secondPages = new AtomicInteger();
+        AtomicInteger secondListed = new AtomicInteger();
+
+        // Pages over the category budget are not counted
+        budgets.setListed(level, firstPages, firstListed, 7);
+        assertEquals(4, firstListed.get());
+        assertFalse(budgets.wouldUseUp(level));
+        budgets.setListed(level, secondPages, secondListed, 3);
+        assertFalse(budgets.wouldUseUp(level));
+        budgets.setListed(level, secondPages, secondListed, 6);
+        assertEquals(4, secondListed.get());
+        assertTrue(budgets.wouldUseUp(level));
+        assertFalse(budgets.isLevelUsedUp(level));
+
+        // Claimed pages move from listed to reserved ones
+        budgets.setListed(level, firstPages, firstListed, 0);
+        assertFalse(budgets.wouldUseUp(level));
+        assertEquals(4, budgets.reserve(level, firstPages, 7));
+        assertTrue(budgets.wouldUseUp(level));
+        budgets.setListed(level, secondPages, secondListed, 0);
+        assertFalse(budgets.wouldUseUp(level));
+    }
+}
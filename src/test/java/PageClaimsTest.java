@@ -0,0 +1,45 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class PageClaimsTest {
+
+    @Test
+    public void fileIdsAreUnpackedAsClaimed() {
+        PageClaims claims = new PageClaims(false);
+        assertNull(claims.claim(1, "00_000"));
+        assertNull(claims.claim(2, "00_012_007"));
+        assertNull(claims.claim(3, "01_1234"));
+        assertNull(claims.claim(4, "00_012_040"));
+
+        assertEquals("00_000", claims.get(1));
+        assertEquals("00_012_007", claims.get(2));
+        assertEquals("01_1234", claims.get(3));
+        assertEquals("00_012_040", claims.get(4));
+        assertNull(claims.get(5));
+        assertEquals(4, claims.size());
+    }
+
+    @Test
+    public void firstClaimWins() {
+        PageClaims claims = new PageClaims(true);
+        long pageKey = (1L << 40) | 12;
+        assertNull(claims.claim(pageKey, "00_003_001"));
+        assertEquals("00_003_001", claims.claim(pageKey, "01_002"));
+        assertEquals("00_003_001", claims.get(pageKey));
+        assertNull(claims.get(12));
+    }
+
+    @Test
+    public void releasedPageCanBeClaimedAgain() {
+        PageClaims claims = new PageClaims(false);
+        assertNull(claims.claim(5, "00_001"));
+        claims.release(5);
+        assertNull(claims.get(5));
+        assertNull(claims.claim(5, "00_002_003"));
+        assertEquals("00_002_003", claims.get(5));
+        assertEquals(1, claims.size());
+    }
+}
@@ -0,0 +1,77 @@
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class RateLimiterTest {
+    private final AtomicLong clock = new AtomicLong(1000);
+
+
+    private void advanceMs(long ms) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+    }
+
+
+    @Test
+    public void burstIsTakenAtOnceThenPermitsComeAtTheRate() {
+        RateLimiter limiter = new RateLimiter(10, 3, clock::get);
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), limiter.reserve());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), limiter.reserve());
+
+        // Idle time refills no more than the burst
+        advanceMs(10000);
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), limiter.reserve());
+    }
+
+    @Test
+    public void backOffPausesRequestsAndHalvesTheRate() {
+        RateLimiter limiter = new RateLimiter(10, 1, clock::get);
+        limiter.backOff(500);
+        assertEquals(5, limiter.getPermitsPerSecond(), 1e-9);
+        // Pause, then one permit at the lowered rate
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(700), limiter.reserve());
+
+        advanceMs(700);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), limiter.reserve());
+
+        for (int i = 0; i < 20; i++) {
+            limiter.backOff(0);
+        }
+        assertEquals(0.1, limiter.getPermitsPerSecond(), 1e-9);
+    }
+
+    @Test
+    public void rateGrowsBackWithSuccessfulRequests() {
+        RateLimiter limiter = new RateLimiter(10, 1, clock::get);
+        limiter.backOff(0);
+        for (int i = 0; i < 10; i++) {
+            limiter.onSuccess();
+        }
+        assertEquals(7, limiter.getPermitsPerSecond(), 1e-9);
+        for (int i = 0; i < 100; i++) {
+            limiter.onSuccess();
+        }
+        assertEquals(10, limiter.getPermitsPerSecond(), 1e-9);
+    }
+
+    @Test
+    public void unlimitedRateOnlyPauses() {
+        RateLimiter limiter = new RateLimiter(0, 1, clock::get);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.reserve());
+        }
+        limiter.backOff(300);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(300), limiter.reserve());
+        advanceMs(300);
+        assertEquals(0, limiter.reserve());
+    }
+}
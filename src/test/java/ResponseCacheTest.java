@@ -0,0 +1,179 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+
+public class ResponseCacheTest {
+    private static final String url = "http://127.0.0.1/w/api.php?action=query&format=json&pageids=";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Modification times of the files are the last use, so the clock starts at the real time
+    private final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+
+
+    private ResponseCache cache(long ttlMs, long maxDiskBytes, long maxMemoryBytes) throws IOException {
+        return new ResponseCache(folder.getRoot().toPath().resolve("cache"), ttlMs, maxDiskBytes, maxMemoryBytes,
+                clock::get);
+    }
+
+    // Random bytes do not compress, so each file is a bit larger than its body
+    private static byte[] body(int seed, int length) {
+        byte[] body = new byte[length];
+        new Random(seed).nextBytes(body);
+        return body;
+    }
+
+    private static void put(ResponseCache cache, String url, byte[] body) throws IOException {
+        try (InputStream content = cache.tee(url, new ByteArrayInputStream(body))) {
+            assertArrayEquals(body, content.readAllBytes());
+        }
+    }
+
+    private static byte[] get(ResponseCache cache, String url) throws IOException {
+        try (InputStream content = cache.get(url)) {
+            return content == null ? null : content.readAllBytes();
+        }
+    }
+
+    private List<Path> cachedFiles() throws IOException {
+        try (Stream<Path> paths = Files.walk(folder.getRoot().toPath().resolve("cache"))) {
+            return paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    private void deleteCachedFiles() throws IOException {
+        for (Path path : cachedFiles()) {
+            Files.delete(path);
+        }
+    }
+
+
+    @Test
+    public void urlsDifferingInParameterOrderAndMaxlagShareResponse() throws IOException {
+        ResponseCache cache = cache(0, 1 << 20, 1 << 20);
+        byte[] body = body(1, 100);
+        put(cache, "http://127.0.0.1/w/api.php?action=query&maxlag=5&pageids=1&format=json", body);
+        assertArrayEquals(body, get(cache, "http://127.0.0.1/w/api.php?format=json&action=query&pageids=1"));
+        assertNull(get(cache, "http://127.0.0.1/w/api.php?format=json&action=query&pageids=2"));
+    }
+
+    @Test
+    public void responsesExpireAfterTimeToLive() throws IOException {
+        ResponseCache cache = cache(60000, 1 << 20, 1 << 20);
+        put(cache, url + 1, body(1, 100));
+        put(cache, url + 2, body(2, 100000));
+        clock.addAndGet(60000);
+        assertNotNull(get(cache, url + 1));
+        assertNotNull(get(cache, url + 2));
+
+        // Expired in memory and on disk, also after a restart
+        clock.addAndGet(1);
+        assertNull(get(cache, url + 1));
+        assertNull(cache(60000, 1 << 20, 1 << 20).get(url + 2));
+        assertEquals(0, cachedFiles().size());
+    }
+
+    @Test
+    public void leastRecentlyUsedResponsesAreEvicted() throws IOException {
+        // Room for two bodies on disk, none in memory
+        ResponseCache cache = cache(0, 2500, 0);
+        put(cache, url + 1, body(1, 1000));
+        clock.addAndGet(10000);
+        put(cache, url + 2, body(2, 1000));
+        clock.addAndGet(10000);
+        assertNotNull(get(cache, url + 1));
+        put(cache, url + 3, body(3, 1000));
+
+        assertArrayEquals(body(1, 1000), get(cache, url + 1));
+        assertNull(get(cache, url + 2));
+        assertArrayEquals(body(3, 1000), get(cache, url + 3));
+        assertEquals(2, cachedFiles().size());
+    }
+
+    @Test
+    public void orderOfUseSurvivesRestart() throws IOException {
+        ResponseCache cache = cache(0, 2500, 0);
+        put(cache, url + 1, body(1, 1000));
+        put(cache, url + 2, body(2, 1000));
+        clock.addAndGet(10000);
+        assertNotNull(get(cache, url + 1));
+
+        ResponseCache restarted = cache(0, 2500, 0);
+        put(restarted, url + 3, body(3, 1000));
+        assertNotNull(get(restarted, url + 1));
+        assertNull(get(restarted, url + 2));
+    }
+
+    @Test
+    public void smallResponsesAreKeptInMemory() throws IOException {
+        // Bodies up to 1000 bytes go to memory, 8000 bytes in all
+        ResponseCache cache = cache(0, 1 << 20, 8000);
+        for (int i = 0; i < 20; i++) {
+            put(cache, url + i, body(i, 500));
+        }
+        put(cache, url + "large", body(100, 2000));
+        deleteCachedFiles();
+
+        // Only the recently used ones are left in memory
+        for (int i = 0; i < 4; i++) {
+            assertNull(get(cache, url + i));
+        }
+        for (int i = 4; i < 20; i++) {
+            assertArrayEquals(body(i, 500), get(cache, url + i));
+        }
+        assertNull(get(cache, url + "large"));
+    }
+
+    @Test
+    public void responseIsCachedWhenClosedBeforeItsEnd() throws IOException {
+        ResponseCache cache = cache(0, 1 << 20, 0);
+        byte[] body = body(1, 100000);
+        try (InputStream content = cache.tee(url + 1, new ByteArrayInputStream(body))) {
+            assertEquals(10, content.read(new byte[10]));
+            assertEquals(1000, content.skip(1000));
+        }
+        assertArrayEquals(body, get(cache, url + 1));
+    }
+
+    @Test
+    public void brokenResponseIsNotCached() throws IOException {
+        ResponseCache cache = cache(0, 1 << 20, 1 << 20);
+        InputStream broken = new FilterInputStream(new ByteArrayInputStream(body(1, 100000))) {
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (in.available() < 50000) {
+                    throw new IOException("Connection reset");
+                }
+                return super.read(buffer, offset, length);
+            }
+        };
+        try (InputStream content = cache.tee(url + 1, broken)) {
+            content.readAllBytes();
+            fail("Broken response read");
+        } catch (IOException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+        assertNull(get(cache, url + 1));
+        assertEquals(0, cachedFiles().size());
+    }
+}
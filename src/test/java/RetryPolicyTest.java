@@ -0,0 +1,53 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class RetryPolicyTest {
+
+    @Test
+    public void delayCeilingDoublesUpToMax() {
+        RetryPolicy highest = new RetryPolicy(5, 100, 1000, bound -> bound - 1);
+        assertEquals(100, highest.getDelayMs(1));
+        assertEquals(200, highest.getDelayMs(2));
+        assertEquals(400, highest.getDelayMs(3));
+        assertEquals(800, highest.getDelayMs(4));
+        assertEquals(1000, highest.getDelayMs(5));
+        assertEquals(1000, highest.getDelayMs(100));
+
+        RetryPolicy lowest = new RetryPolicy(5, 100, 1000, bound -> 0);
+        assertEquals(0, lowest.getDelayMs(1));
+        assertEquals(0, lowest.getDelayMs(5));
+    }
+
+    @Test
+    public void jitteredDelaysStayWithinCeiling() {
+        RetryPolicy policy = new RetryPolicy(5, 100, 1000);
+        for (int attempt = 1; attempt <= 6; attempt++) {
+            long ceilingMs = Math.min(1000, 100L << (attempt - 1));
+            for (int i = 0; i < 1000; i++) {
+                long delayMs = policy.getDelayMs(attempt);
+                assertTrue(delayMs + " ms after attempt " + attempt, delayMs >= 0 && delayMs <= ceilingMs);
+            }
+        }
+    }
+
+    @Test
+    public void retryAfterIsWaitedForEvenOverMaxDelay() {
+        RetryPolicy policy = new RetryPolicy(5, 100, 1000, bound -> bound - 1);
+        assertEquals(5000, policy.getDelayMs(1, 5));
+        assertEquals(400, policy.getDelayMs(3, 0));
+        assertEquals(400, policy.getDelayMs(3, -1));
+    }
+
+    @Test
+    public void attemptsAreCountedFromOne() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+        assertTrue(policy.canRetry(1));
+        assertTrue(policy.canRetry(2));
+        assertFalse(policy.canRetry(3));
+        assertFalse(new RetryPolicy(0, 100, 1000).canRetry(1));
+    }
+}
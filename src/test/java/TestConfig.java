@@ -0,0 +1,32 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Minimal crawler config for tests, read by Main from a temporary file. Settings can be added or overridden.
+ */
+class TestConfig {
+    static void load(Path directory, String... settings) throws IOException {
+        List<String> lines = new ArrayList<>(Arrays.asList(
+                "categories = Sports",
+                "category_namespace = Category",
+                "parallel_task_number = 2",
+                "csv_filename = pages_info.csv",
+                "max_pages_per_level = 0",
+                "path_to_crawled_data = " + directory.toString()));
+        lines.addAll(Arrays.asList(settings));
+        Path configPath = directory.resolve("config.properties");
+        Files.write(configPath, lines, StandardCharsets.UTF_8);
+        System.setProperty("crawler.config", configPath.toString());
+        try {
+            Main.readProperties();
+        } finally {
+            System.clearProperty("crawler.config");
+        }
+    }
+}